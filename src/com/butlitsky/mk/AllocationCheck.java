@@ -0,0 +1,60 @@
+package com.butlitsky.mk;
+
+import com.butlitsky.mk.ensembles.EnsemblesFactory;
+import com.butlitsky.mk.ensembles.MetropolisEnsemble;
+import com.butlitsky.mk.options.CLOptions;
+import com.butlitsky.mk.options.EOptions;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Checks that Monte-Carlo steps of an ensemble make no heap allocations.
+ * <p/>
+ * Same options as {@link Main} (Gibbs LJ ensemble by default), the first mk_config.ini point is
+ * played in the current directory. First half of the steps heats up the JIT, the second half
+ * is measured by the thread allocation counter. Periodic calculations (files output) are not
+ * played. Exits with 1 if any byte is allocated.
+ * <p/>
+ * usage: java com.butlitsky.mk.AllocationCheck [OPTIONS]
+ */
+public class AllocationCheck {
+    private static final String CONFIG_FILE = "mk_config.ini";
+
+    private static final String[] DEFAULT_ARGS = {
+            "-gibbs_lj", "-rostar", "0.7", "-po", "0.8", "-d", "0.3",
+            "-pa", "300", "-stp", "200000", "-seed", "42", "-cubic"};
+
+    public static void main(String[] args) throws IOException {
+        Locale.setDefault(Locale.US);
+        CLOptions.init((args.length > 0) ? args : DEFAULT_ARGS);
+
+        final EOptions opt = EOptions.readConfig(CONFIG_FILE).iterator().next();
+        final MetropolisEnsemble ensemble = (MetropolisEnsemble) EnsemblesFactory.createEnsemble(opt);
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final int steps = opt.getNumSteps();
+
+        int i = 0;
+        for (; i < steps / 2; i++) {
+            ensemble.step(i);
+        }
+
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (; i < steps; i++) {
+            ensemble.step(i);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println("\n" + opt.getFolder() + ": " + allocated + " bytes allocated in "
+                                   + (steps - steps / 2) + " steps");
+        if (allocated != 0) {
+            System.out.println("FAILED: Monte-Carlo steps must not allocate");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
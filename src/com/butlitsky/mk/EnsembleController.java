@@ -2,6 +2,7 @@ package com.butlitsky.mk;
 
 import com.butlitsky.mk.ensembles.EnsemblesFactory;
 import com.butlitsky.mk.ensembles.GibbsConfigurationManager;
+import com.butlitsky.mk.ensembles.ReplicaExchange;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 
@@ -52,9 +53,6 @@ public class EnsembleController implements IEnsembleController {
             cores = CLOptions.NUM_THREADS;
         }
 
-        System.out.println("Executor pool has " + cores + " workers");
-        pool = Executors.newFixedThreadPool(cores);
-
         // assuming unique EOptions instanse is a unique calculation point, so no two
         // executors with the same options will be executed
         Set<EOptions> options = EOptions.readConfig(CONFIG_FILE);
@@ -79,6 +77,18 @@ public class EnsembleController implements IEnsembleController {
             ensemblesResultValues.get(opt.getT()).put(ens, new ArrayDeque<double[]>(3));
         }
 
+        if (CLOptions.EXCHANGE_INTERVAL > 0) {
+            // replicas of a group wait for each other, so all of them must have a thread
+            int replicas = 0;
+            for (ReplicaExchange group : ReplicaExchange.createGroups(ensembles)) {
+                replicas += group.size();
+            }
+            cores = Math.max(cores, replicas);
+        }
+
+        System.out.println("Executor pool has " + cores + " workers");
+        pool = Executors.newFixedThreadPool(cores);
+
         System.out.println("\n");
     }
 
@@ -23,6 +23,9 @@ public interface IEnsemble extends Runnable {
     String STATE_FILE = "config.dat";
     String LONGTAIL_FILE = "all_configs.dat";
     String CORR_FILE = "correlation.dat";
+    String RANDOM_STATE_FILE = "random.dat";
+    String EWALD_STATE_FILE = "ewald.dat";
+    String EXCHANGE_STATE_FILE = "exchange.dat";
 
     int CORR_LENGTH = 90;
     /**
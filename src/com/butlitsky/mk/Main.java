@@ -14,7 +14,10 @@ public class Main {
      * usage: (./runmk.command | runmk.bat) [OPTIONS]
      *  -ew                         use Ewald summation
      *  -ewd,--ewaldelta <NUM>      Ewald accuracy delta parameter (0.001 default)
-     *  -ewn,--ewaldn <NUM>         EwaldNcutoff parameter (3 default)
+     *  -ewn,--ewaldn <NUM>         EwaldNcutoff parameter (tuned with alpha and Rcut default)
+     *  -pme                        use smooth particle-mesh Ewald summation (-ewd accuracy)
+     *  -pmeg,--pmegrid <NUM>       PME grid points per axis, power of two
+     *  -pmep,--pmeorder <NUM>      PME B-spline order (4 default)
      *
      *  -h                          show this help and exit
      *  -harris,--harris <NUM>      Harris radius. When set Harris algorithm used with given R in
@@ -23,6 +26,7 @@ public class Main {
      *  -pseudo                     Use pseudo potential ensemble, all polochka parameters ignored
      *
      *  -ap,--avpoints <NUM>        number of averaging points for Energy (default is number of total steps!)
+     *  -as,--avstride <NUM>        record every Nth step energy for averages (1 default, a sweep for PME)
      *  -d,--delta <DELTA_FACTOR>   maxDx coeff.
      *      – zero equals  1. x BOX SIZE
      *      – other values = x avg. distance
@@ -33,7 +37,17 @@ public class Main {
      *  -stp,--steps <NUM>          number of total steps to go for each point
      *  -r,--refresh <SECONDS>      threads status refresh interval (15 sec. default)
      *  -w,--workers <NUM>          number of parallel threads, default is MAX(2, CPUs/2)
+     *  -fj,--forkjoin <NUM>        split single ensemble pair sums across NUM fork-join threads
+     *  -seed,--seed <SEED>         master random seed, same seed and options – same results
+     *  -mt                         use Mersenne Twister instead of xoshiro256** generator
+     *  -rex,--exchange <STEPS>     replica exchange of same density NVT points every STEPS
+     *  -spec,--speculative <NUM>   evaluate next NUM NVT trial moves concurrently (-fj NUM default)
+     *  -da,--delayed <DISTANCES>   screen NVT moves by neighbours within DISTANCES first (exact)
+     *  -er,--early <DISTANCES>     reject NVT moves by neighbours within DISTANCES and far bound, not with -tab
      *  -cubic                      start from fcc NaCl initial configuration
+     *  -tab,--table <CELLS>        use tabulated pair potentials with given number of cells
+     *  -tabtol,--tabletol <kT>     max tabulated potential error (1e-7 default)
+     *  -batch                      use batched (vectorizable) pair sums kernel
      *
      *  –inisteps                   number of initial steps to ignore in averages calculations
      *
@@ -41,6 +55,8 @@ public class Main {
      *  –gibbs_lj                   Use gibbse ensemble calculation for Lennard-Johnes potetial (two boxes of total V and N)
      *  –gibbs_lj2                   Use gibbse ensemble calculation for Lennard-Johnes potetial (two different boxes)
      *  –switch_rate                Percentage of interchange steps (default 0.05 - 5%)
+     *  –ljc, --ljcut               Lennard-Johnes potential cutoff in sigmas with tail corrections (no cutoff default)
+     *  –ecmc, --eventchain         Lennard-Johnes event chain moves of given length in avg. distances
      *  –rostar                     Initial Lennard-Johnes Ro* parameter (default 0.1)
      *  –rostar1                     Initial Lennard-Johnes Ro* parameter for first box (default 0.1)
      *  –rostar2                     Initial Lennard-Johnes Ro* parameter for second box (default 0.1)
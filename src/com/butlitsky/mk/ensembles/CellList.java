@@ -0,0 +1,196 @@
+package com.butlitsky.mk.ensembles;
+
+import java.util.Arrays;
+
+/**
+ * Linked cells spatial index for a periodic cubic box. Every particle within the cutoff of a
+ * point is in the point cell or one of its (periodic) neighbour cells. Particles are kept in
+ * doubly linked per cell lists, so single particle moves are O(1).
+ * <p/>
+ * With less than 3 cells per side the neighbour cells wrap onto each other, neighbour lists
+ * contain every cell once only.
+ * <p/>
+ * Not thread safe.
+ */
+final class CellList {
+    private static final int NONE = -1;
+
+    private final double boxSize;
+    private final int perSide;
+    private final double cellsPerBohr;
+
+    private final int[] head;
+    private final int[] next;
+    private final int[] prev;
+    private final int[] cellOf;
+
+    // per cell unique neighbour cells (including the cell itself)
+    private final int[][] neighbours;
+
+    /**
+     * @param boxSize  periodic box size (in Bohrs)
+     * @param cutoff   interaction cutoff, cells are not smaller
+     * @param capacity max particle index + 1
+     */
+    CellList(double boxSize, double cutoff, int capacity) {
+        this.boxSize = boxSize;
+        perSide = cellsPerSide(boxSize, cutoff);
+        cellsPerBohr = perSide / boxSize;
+
+        final int cells = perSide * perSide * perSide;
+        head = new int[cells];
+        next = new int[capacity];
+        prev = new int[capacity];
+        cellOf = new int[capacity];
+        neighbours = new int[cells][];
+
+        final int[] stencil = new int[27];
+        for (int cx = 0; cx < perSide; cx++) {
+            for (int cy = 0; cy < perSide; cy++) {
+                for (int cz = 0; cz < perSide; cz++) {
+                    stencil[0] = index(cx, cy, cz); // own cell first, closest particles
+                    int count = 1;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        for (int dy = -1; dy <= 1; dy++) {
+                            for (int dz = -1; dz <= 1; dz++) {
+                                final int cell = index(wrap(cx + dx), wrap(cy + dy), wrap(cz + dz));
+                                if (!contains(stencil, count, cell)) {
+                                    stencil[count++] = cell;
+                                }
+                            }
+                        }
+                    }
+                    final int[] list = new int[count];
+                    System.arraycopy(stencil, 0, list, 0, count);
+                    neighbours[index(cx, cy, cz)] = list;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return cells per side of the box for the cutoff
+     */
+    static int cellsPerSide(double boxSize, double cutoff) {
+        return Math.max(1, (int) Math.floor(boxSize / cutoff));
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) return true;
+        }
+        return false;
+    }
+
+    private int wrap(int c) {
+        return (c < 0) ? c + perSide : (c >= perSide ? c - perSide : c);
+    }
+
+    private int index(int cx, int cy, int cz) {
+        return (cx * perSide + cy) * perSide + cz;
+    }
+
+    /**
+     * @return cell number along any axis for the coordinate
+     */
+    int axisCell(double coord) {
+        int c = (int) Math.floor(coord * cellsPerBohr) % perSide;
+        return (c < 0) ? c + perSide : c;
+    }
+
+    int getCells() {
+        return head.length;
+    }
+
+    int getCellsPerSide() {
+        return perSide;
+    }
+
+    double getBoxSize() {
+        return boxSize;
+    }
+
+    int cellOf(double x, double y, double z) {
+        return index(axisCell(x), axisCell(y), axisCell(z));
+    }
+
+    /**
+     * Refills the index with particles [0, count)
+     */
+    void build(double[] xs, double[] ys, double[] zs, int count) {
+        clear();
+        for (int i = 0; i < count; i++) {
+            add(i, xs[i], ys[i], zs[i]);
+        }
+    }
+
+    /**
+     * Empties the index, particles are put back by {@link #add(int, double, double, double)}
+     */
+    void clear() {
+        Arrays.fill(head, NONE);
+    }
+
+    /**
+     * Adds particle i (not in the index yet) at (x, y, z)
+     */
+    void add(int i, double x, double y, double z) {
+        insert(i, cellOf(x, y, z));
+    }
+
+    /**
+     * Moves particle i to (x, y, z)
+     */
+    void move(int i, double x, double y, double z) {
+        final int cell = cellOf(x, y, z);
+        if (cell == cellOf[i]) return;
+
+        remove(i);
+        insert(i, cell);
+    }
+
+    private void insert(int i, int cell) {
+        cellOf[i] = cell;
+        prev[i] = NONE;
+        next[i] = head[cell];
+        if (head[cell] != NONE) prev[head[cell]] = i;
+        head[cell] = i;
+    }
+
+    /**
+     * Removes particle i from the index
+     */
+    void remove(int i) {
+        if (prev[i] != NONE) {
+            next[prev[i]] = next[i];
+        } else {
+            head[cellOf[i]] = next[i];
+        }
+        if (next[i] != NONE) prev[next[i]] = prev[i];
+    }
+
+    int getCell(int i) {
+        return cellOf[i];
+    }
+
+    /**
+     * @return cells to look for neighbours of any point inside the cell, including itself
+     */
+    int[] getNeighbours(int cell) {
+        return neighbours[cell];
+    }
+
+    /**
+     * @return first particle of the cell or negative if empty
+     */
+    int getFirst(int cell) {
+        return head[cell];
+    }
+
+    /**
+     * @return next particle of the same cell or negative if last
+     */
+    int getNext(int i) {
+        return next[i];
+    }
+}
@@ -0,0 +1,88 @@
+package com.butlitsky.mk.ensembles;
+
+import com.butlitsky.mk.IEnsemble;
+
+/**
+ * Coulomb pair potential with constant value inside the core radius. Covers both polochka
+ * ion-electron attraction and short distance limited repulsion.
+ */
+final class CoreCoulombPotential implements IPairPotential {
+    private final double coreR2;
+    private final double corePotential;
+    private final double coreEnergy;
+    private final double coulomb; // signed e^2 / (Bohr * kT)
+    private final boolean continuousCore; // core potential equals coulomb / coreR
+
+    /**
+     * @param coreR         core radius (in Bohrs)
+     * @param corePotential potential inside the core
+     * @param coreEnergy    energy contribution inside the core
+     * @param coulomb       signed Coulomb factor, potential is coulomb / r outside the core
+     */
+    CoreCoulombPotential(double coreR, double corePotential, double coreEnergy, double coulomb) {
+        coreR2 = coreR * coreR;
+        this.corePotential = corePotential;
+        this.coreEnergy = coreEnergy;
+        this.coulomb = coulomb;
+        continuousCore = Math.abs(corePotential - coulomb / coreR) <= Math.abs(corePotential) * 1e-12;
+    }
+
+    /**
+     * Ion-electron attraction with -epsilon (in kT) polochka plateau. Plateau makes zero
+     * contribution to energy.
+     */
+    static CoreCoulombPotential polochka(int T, double epsilon) {
+        return new CoreCoulombPotential(IEnsemble.SCALE_FACTOR / (T * epsilon),
+                                        -epsilon, 0, -IEnsemble.SCALE_FACTOR / T);
+    }
+
+    /**
+     * Same charges repulsion limited by its value on the minR distance (in Bohrs)
+     */
+    static CoreCoulombPotential repulsion(int T, double minR) {
+        final double limit = IEnsemble.SCALE_FACTOR / (T * minR);
+        return new CoreCoulombPotential(minR, limit, limit, IEnsemble.SCALE_FACTOR / T);
+    }
+
+    @Override
+    public double getPotential(double r2) {
+        return (r2 < coreR2) ? corePotential : coulomb / Math.sqrt(r2);
+    }
+
+    /**
+     * Plateau is flat, Coulomb slope decreases with the distance
+     */
+    @Override
+    public double getMaxSlope(double r) {
+        if (!continuousCore && r * r < coreR2) return Double.POSITIVE_INFINITY;
+        return Math.abs(coulomb) / Math.max(r * r, coreR2);
+    }
+
+    @Override
+    public double getEnergy(double r2) {
+        return (r2 < coreR2) ? coreEnergy : coulomb / Math.sqrt(r2);
+    }
+
+    /**
+     * Both polochka and repulsion cores are continuous, so the plateau is just the distance
+     * clamped to the core radius – no branches in the loop.
+     */
+    @Override
+    public double sumPotentials(double[] r2, double[] out, int from, int to) {
+        double sum = 0;
+        if (continuousCore) {
+            for (int i = from; i < to; i++) {
+                final double pot = coulomb / Math.sqrt(Math.max(r2[i], coreR2));
+                out[i] = pot;
+                sum += pot;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                final double pot = getPotential(r2[i]);
+                out[i] = pot;
+                sum += pot;
+            }
+        }
+        return sum;
+    }
+}
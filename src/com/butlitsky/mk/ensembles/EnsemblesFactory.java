@@ -40,6 +40,10 @@ public class EnsemblesFactory {
                 ensemble = new GibbsEnsembleLJ2(opt);
                 ensemble.loadState();
                 break;
+            case 7:
+                ensemble = new NVTEnsemblePolochkaPME(opt);
+                ensemble.loadState();
+                break;
             default:
                 ensemble = new NVTEnsemblePolochka(opt);
                 ensemble.loadState();
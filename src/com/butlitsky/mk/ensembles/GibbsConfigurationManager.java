@@ -37,7 +37,7 @@ public class GibbsConfigurationManager {
     private BufferedWriter additionalStateWriter;
 
     private final int Nei;
-    private final double[][][] prtcls;
+    private final double[][][] prtcls; // box fractions, coordinates are saved in Bohrs
     private boolean saveLongTail = false;
 
     private final GibbsEnsemble myEnsemble;
@@ -91,6 +91,7 @@ public class GibbsConfigurationManager {
             if (Files.exists(myConfigPath)) {
                 try {
                     readCoordinates(Files.readAllLines(myConfigPath, Charset.forName("UTF-8")));
+                    myEnsemble.loadRandomState();
                     System.out.print(": config loaded - ok");
                 } catch (Exception e) {
                     System.out.println("WARNING: failed to read config for " + myFolder);
@@ -118,8 +119,10 @@ public class GibbsConfigurationManager {
      */
     private void readCoordinates(List<String> strings) throws Exception {
 //          first line format:
-// current step, boxBorder, avg. energy 1 (per prtcl), avg density 1, avg. energy 2, avg. density 2, total Gamma
+// current step, boxBorder, avg. energy 1 (per prtcl), avg density 1, avg. energy 2, avg. density 2, total Gamma,
+// box 1 volume (cm^3, absent in old files)
         String firstline = strings.remove(0);
+        final String[] header = firstline.trim().split("\\s+");
 
         myEnsemble.setCurrStep(Integer.parseInt(firstline.split("\\s+")[0]));
         final int boxBorder = Integer.parseInt(firstline.split("\\s+")[1]);
@@ -137,46 +140,68 @@ public class GibbsConfigurationManager {
             throw new IndexOutOfBoundsException("file size doesn't fit particles number");
         }
 
+        // coordinates are in Bohrs of the saved boxes, particles are stored as box fractions
+        final double[] coords = new double[Nei * 2 * 3];
+        for (int i = 0; i < Nei * 2; i++) {
+            String[] strs = strings.get(i).split("\\s");
+            coords[3 * i] = Double.parseDouble(strs[0]);
+            coords[3 * i + 1] = Double.parseDouble(strs[1]);
+            coords[3 * i + 2] = Double.parseDouble(strs[2]);
+        }
+
+        if (header.length > 7) {
+            myEnsemble.setVolume1(Double.parseDouble(header[7]));
+        } else {
+            System.out.println("WARNING: " + myFolder + " config has no box volume, particles are " +
+                                       "wrapped into the initial boxes");
+        }
+
+        final double[] boxSizes = myEnsemble.getBoxSizes();
         for (int type = 0; type < 2; type++) {
             for (int i = 0 + type * Nei; i < Nei + type * Nei; i++) {
-                String[] strs = strings.get(i).split("\\s");
-
-                prtcls[type][0][i - type * Nei] = Double.parseDouble(strs[0]);
-                prtcls[type][1][i - type * Nei] = Double.parseDouble(strs[1]);
-                prtcls[type][2][i - type * Nei] = Double.parseDouble(strs[2]);
+                final double box_size = boxSizes[(i - type * Nei < boxBorder) ? 0 : 1];
+                for (int axis = 0; axis < 3; axis++) {
+                    prtcls[type][axis][i - type * Nei] = toFraction(coords[3 * i + axis], box_size);
+                }
             }
         }
     }
 
     /**
-     * fill random arrays of particles, resetting all counters
+     * @return box fraction in [0, 1) of the coordinate, wraps rounding at the box border
+     */
+    private static double toFraction(double coord, double box_size) {
+        final double fraction = coord / box_size;
+        return fraction - Math.floor(fraction);
+    }
+
+    /**
+     * fill random arrays of particles (box fractions), resetting all counters
      */
     void initParticlesPosition() {
-        final double[] boxSizes = myEnsemble.getBoxSizes();
         final int boxBorder = myEnsemble.getBoxBorder();
 
         // uniformly distribute particles in the box NaCL structure (fcc)
         if (CLOptions.START_FROM_FCC) {
-            fillBoxFCC(0, boxBorder, boxSizes[0]);
-            fillBoxFCC(boxBorder, Nei, boxSizes[1]);
+            fillBoxFCC(0, boxBorder);
+            fillBoxFCC(boxBorder, Nei);
         } else {
             // random configuration.
             for (int type = 0; type < 2; type++) {
                 for (int j = 0; j < Nei; j++) {
-                    int box = (j < boxBorder) ? 0 : 1;
                     /* spreading the particles */
-                    prtcls[type][0][j] = myEnsemble.myRandom(boxSizes[box]);
-                    prtcls[type][1][j] = myEnsemble.myRandom(boxSizes[box]);
-                    prtcls[type][2][j] = myEnsemble.myRandom(boxSizes[box]);
+                    prtcls[type][0][j] = myEnsemble.myRandom(1.0);
+                    prtcls[type][1][j] = myEnsemble.myRandom(1.0);
+                    prtcls[type][2][j] = myEnsemble.myRandom(1.0);
                 }
             }
         }
     }
 
-    private void fillBoxFCC(int start, int stop, double box_size) {
+    private void fillBoxFCC(int start, int stop) {
         final int length = stop - start;
         final int Nx = (int) ceil(FastMath.cbrt(length * 2));
-        final double Lx = box_size / Nx;
+        final double Lx = 1.0 / Nx;
 
         for (int j = 0; j < length * 2; j++) {
             int zLayer = j / (Nx * Nx);
@@ -199,7 +224,8 @@ public class GibbsConfigurationManager {
             final double avgEnergy2 = myEnsemble.getAvgEnergy(1);
 //          first line format:
 //
-// current step, boxBorder, avg. energy 1 (per prtcl), avg density 1, avg. energy 2, avg. density 2, total Gamma
+// current step, boxBorder, avg. energy 1 (per prtcl), avg density 1, avg. energy 2, avg. density 2, total Gamma,
+// box 1 volume (cm^3)
             writer.write(
                     "" + myEnsemble.getCurrStep() + "\t"
                             + myEnsemble.getBoxBorder() + "\t"
@@ -208,6 +234,7 @@ public class GibbsConfigurationManager {
                             + long_format.format(avgEnergy2) + "\t"
                             + long_format.format(myEnsemble.getDensitiesAvg()[1]) + "\t"
                             + short_format.format(myEnsemble.opt.getGamma()) + "\t"
+                            + long_format.format(myEnsemble.getVolume1()) + "\t"
             );
 
             writer.newLine();
@@ -217,6 +244,7 @@ public class GibbsConfigurationManager {
             e.printStackTrace();
             System.out.println("ERROR: failed to save state for " + myFolder);
         }
+        myEnsemble.saveRandomState();
     }
 
     /**
@@ -226,13 +254,18 @@ public class GibbsConfigurationManager {
      * @throws IOException
      */
     private void writeCoordinates(BufferedWriter writer) throws IOException {
-        // all E goes first, then all Ions (NOT box after box!)
+        final double[] boxSizes = myEnsemble.getBoxSizes();
+        final int boxBorder = myEnsemble.getBoxBorder();
+
+        // all E goes first, then all Ions (NOT box after box!), in Bohrs. Pair i is on lines i
+        // and Nei + i, pairs [0, boxBorder) are in box 1, pairs order inside the boxes is arbitrary
         for (int type = 0; type < 2; type++) {
             for (int i = 0 + type * Nei; i < Nei + type * Nei; i++) {
+                final double box_size = boxSizes[(i - type * Nei < boxBorder) ? 0 : 1];
                 writer.write(
-                        long_format.format(prtcls[type][0][i - type * Nei]) + "\t"
-                                + long_format.format(prtcls[type][1][i - type * Nei]) + "\t"
-                                + long_format.format(prtcls[type][2][i - type * Nei])
+                        long_format.format(prtcls[type][0][i - type * Nei] * box_size) + "\t"
+                                + long_format.format(prtcls[type][1][i - type * Nei] * box_size) + "\t"
+                                + long_format.format(prtcls[type][2][i - type * Nei] * box_size)
                 );
                 writer.newLine();
             }
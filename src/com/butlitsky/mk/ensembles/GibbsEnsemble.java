@@ -1,12 +1,11 @@
 package com.butlitsky.mk.ensembles;
 
+import com.butlitsky.mk.math.DoubleRingBuffer;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 import org.apache.commons.math3.util.FastMath;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
 
 /**
  * Gibbs ensemble for e-i classical plasma.
@@ -43,14 +42,9 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     // trial Volume 1 new value (in cm-3)
     private double trialV0;
 
-    // current "accepted" state of the particles of both boxes
+    // current "accepted" state of the particles of both boxes, fractions of the box size [0, 1)
     private double[][][] prtcls;
 
-    // trial state for V1,V2 change step. To be switched with 'parts' on acceptance
-    private double[][][] trialPrtcls;
-
-    private double[][][] tmp_pointer;
-
 
     // ------------ BOX mathematics ------------------------------
 
@@ -72,20 +66,57 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     private int acceptTotalIterations = 0;
 
     // --------------- Results accumulators -------------------------
-    private final int avgPoints = CLOptions.NUM_ENERGY_AVG_STEPS;
+    private final int avgPoints = (CLOptions.NUM_ENERGY_AVG_STEPS < 0) ?
+            getNumSteps() - CLOptions.INITIAL_STEPS : CLOptions.NUM_ENERGY_AVG_STEPS;
     private final double[] reducedEnrgyAvg = new double[2];
-    private final Deque<Double>[] reducedEnergies = new Deque[2];
+    private final DoubleRingBuffer[] reducedEnergies = new DoubleRingBuffer[2];
 
     private final double[] currentEnergy = new double[2];
 
+    // total box energies (in kT), tracked by accepted moves shifts
+    private final double[] boxEnergy = new double[2];
+    // box potential shifts of the last trial move
+    private final double[] trialShift = new double[2];
+    // box energy (or repulsion) shifts of the accepted move
+    private final double[] acceptShift = new double[2];
+
+    // total box potentials (in kT), tracked the same way, and their volume trial values
+    private final double[] boxPotential = new double[2];
+    private final double[] trialPotential = new double[2];
+    // r^-12 part of the box potentials, tracked for the scaling decomposition only
+    private final double[] boxRepulsion = new double[2];
+
+    // LJ potential for the volume moves scaling decomposition (null – full sums)
+    private LennardJonesPotential scaling;
+
+    // pair potentials [type1][type2] (0 – electrons, 1 – ions), resolved in loadState()
+    private final IPairPotential[][] pairs = new IPairPotential[2][2];
+
+    // event chain displacements instead of Metropolis ones (null if disabled)
+    private LennardJonesEventChain eventChain;
+
+    // per box linked cells of the particles slots (type * Nei + index), null – no cutoff
+    private CellList[] cells;
+    private double cutoff;
+
+    // batched pair sums kernel buffers (null if disabled)
+    private double[] kernelR2;
+    private double[] kernelOut;
+
     // density (1/cm^-3) for past 'resolution' steps accumulator (each box)
     private final double[] densitiesSum = new double[2];
     private final double[] densitiesAvg = new double[2]; // average density for past 'resolution' steps
     private int densitiesIterations = 0;
 
+    private static final double ENERGY_DRIFT_TOLERANCE = 1e-9;
+
+    // pair sum kinds
+    private static final int POTENTIAL = 0, ENERGY = 1, REPULSION = 2;
+
     // ------------ Gibbs additional options ---------------------
     protected double maxDeltaV;
     // what move was made: 0. move random particle or 1. change V or 2. interchange particles
+    // or 3. event chain
     protected int lastStepType = 0;
     // what box was changed during last MC step: 0,1 or -1 (meaning both)
     private int lastBox = -1;
@@ -131,12 +162,17 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     protected void initParticlesConfig() {
         // initializing particles configuration: [e,i][X,Y,Z][0...Nei]
         prtcls = new double[2][3][Nei];
-        trialPrtcls = new double[2][3][Nei];
+
+        if (CLOptions.BATCHED_KERNEL) {
+            kernelR2 = new double[Nei];
+            kernelOut = new double[Nei];
+        }
 
         System.out.print(", AVG. = " + avgPoints);
 
-        reducedEnergies[0] = new ArrayDeque<>(avgPoints);
-        reducedEnergies[1] = new ArrayDeque<>(avgPoints);
+        final int stride = CLOptions.NUM_ENERGY_AVG_STRIDE;
+        reducedEnergies[0] = new DoubleRingBuffer(DoubleRingBuffer.capacityFor(avgPoints, stride), stride);
+        reducedEnergies[1] = new DoubleRingBuffer(DoubleRingBuffer.capacityFor(avgPoints, stride), stride);
 
         config = new GibbsConfigurationManager(this);
     }
@@ -189,10 +225,16 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
      * Must be called by children in the end of construction or by a factory.
      */
     public void loadState() {
+        initPairPotentials();
+        scaling = getScalingPotential();
+        if (CLOptions.EVENT_CHAIN_LENGTH > 0) {
+            eventChain = createEventChain();
+        }
         loadConfiguration();
 
         updateLengths();
         updateDeltaX();
+        initCells();
 
         initEnergy();
 
@@ -214,6 +256,7 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     @Override
     protected void saveStateOnStop() {
         averageEnergies();
+        System.out.println(myFolder + ": last acceptance rate " + SHORT_FORMAT.format(acceptance));
 
         config.saveConfiguration();
         config.workOnMidCalc();
@@ -235,6 +278,9 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
      */
     protected final boolean play(int step) {
         setStepType(step);
+        if (lastStepType == 0 && eventChain != null) {
+            lastStepType = 3;
+        }
 
         final double expoValue = testMove();
 
@@ -301,7 +347,7 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
 
     @Override
     protected void doRareCalc() {
-        System.out.println("i'm rare calc! step: " + getCurrStep());
+        checkEnergyDrift();
         config.saveConfiguration();
 //        saveCorrelation(); todo: not fixed yet
     }
@@ -309,7 +355,6 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     @Override
     protected void doMidCalc() {
         averageEnergies();
-        System.out.println("i'm mid calc! step: " + getCurrStep());
 //        config.calcCorrelation(); todo: not fixed yet
         config.workOnMidCalc();
     }
@@ -319,7 +364,6 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
         // record acceptance rate & reset counter
         acceptance = ((1 + ((float) acceptCnt / acceptTotalIterations)) / 2);
         acceptCnt = 0;
-        System.out.println("frequent calc (acceptance/iterations): " + acceptance + " / " + acceptTotalIterations);
         acceptTotalIterations = 0;
 
         // record densities
@@ -345,81 +389,194 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
                 acceptParticleSwitch(); // must update length[], deltaX[] and boxBorder and
                 // actually switch particles between boxes
                 break;
+            case 3:
+                acceptEventChain();
+                break;
             default:
                 throw new IllegalStateException("trial move type not supported");
         }
     }
 
     /**
-     * deltaX[], volumes, boxSizes and densities updated,
-     * as well as prtcls array switched to new trialPrtcls.
+     * deltaX[], volumes, boxSizes and densities updated. Particles fractions are the same.
      */
     private void acceptVolumeChange() {
-        tmp_pointer = prtcls;
-        prtcls = trialPrtcls;
-        trialPrtcls = tmp_pointer;
-        tmp_pointer = null;
+        if (scaling != null) {
+            for (int box = 0; box < 2; box++) {
+                final double f = boxSize[box] / trialBoxSize[box];
+                final double f6 = f * f * f * f * f * f;
+                boxRepulsion[box] *= f6 * f6;
+            }
+        }
 
         V[0] = trialV0;
         V[1] = Volume - trialV0;
 
         updateBoxSizes(true);
         updateDeltaX();
+
+        if (cells != null) {
+            resizeCells(0);
+            resizeCells(1);
+        }
+
+        if (isEnergyPotential()) {
+            for (int box = 0; box < 2; box++) {
+                boxPotential[box] = trialPotential[box];
+                boxEnergy[box] = trialPotential[box];
+            }
+        } else { // scaled trial potentials are not exact
+            resyncBox(0);
+            resyncBox(1);
+        }
     }
 
     /**
-     * Updates length[], deltaX[], boxBorder, densities and modifies prtcls array.
+     * Updates length[], deltaX[], boxBorder, densities and modifies prtcls array. O(1), pairs
+     * order inside the boxes is not kept.
      */
     private void acceptParticleSwitch() {
 //        trialIndex; // which pair
 //        xTrial, yTrial, zTrial; // their new coords
 
-        // [0... trialIndex ... ][boxBorder ... Nei]
+        // swap to border: the border pair of the source box takes trialIndex place, the
+        // switched pair takes the border place, and the border moves over it
+        // [0... trialIndex ... boxBorder-1][boxBorder ... Nei]
         // =>
-        // [0...  ...] [boxBorder-1 ... trialpartlc ... Nei]
+        // [0... boxBorder-1 ...][trialpartlc, boxBorder ... Nei]
+
+        boxPotential[0] += trialShift[0];
+        boxPotential[1] += trialShift[1];
+        if (!isEnergyPotential()) {
+            switchShifts(ENERGY, acceptShift);
+            boxEnergy[0] += acceptShift[0];
+            boxEnergy[1] += acceptShift[1];
+        } else {
+            boxEnergy[0] += trialShift[0];
+            boxEnergy[1] += trialShift[1];
+        }
+        if (scaling != null) {
+            switchShifts(REPULSION, acceptShift);
+            boxRepulsion[0] += acceptShift[0];
+            boxRepulsion[1] += acceptShift[1];
+        }
 
-        final int src_pos, dest_pos, length, deltaBB;
+        final int fromBox = (trialIndex < boxBorder) ? 0 : 1;
+        final int border = (fromBox == 0) ? boxBorder - 1 : boxBorder;
 
-        if (trialIndex < boxBorder) {
-            src_pos = trialIndex + 1;
-            dest_pos = trialIndex;
-            length = boxBorder - trialIndex - 1;
-            deltaBB = -1;
-        } else {
-            src_pos = boxBorder;
-            dest_pos = boxBorder + 1;
-            length = trialIndex - boxBorder;
-            deltaBB = 0;
-        }
-
-//        System.out.println("indx: " + trialIndex);
-//        System.out.println("before: " + Arrays.toString(prtcls[0][0]));
-        System.arraycopy(prtcls[0][0], src_pos, prtcls[0][0], dest_pos, length);
-        System.arraycopy(prtcls[0][1], src_pos, prtcls[0][1], dest_pos, length);
-        System.arraycopy(prtcls[0][2], src_pos, prtcls[0][2], dest_pos, length);
-        System.arraycopy(prtcls[1][0], src_pos, prtcls[1][0], dest_pos, length);
-        System.arraycopy(prtcls[1][1], src_pos, prtcls[1][1], dest_pos, length);
-        System.arraycopy(prtcls[1][2], src_pos, prtcls[1][2], dest_pos, length);
-
-        prtcls[0][0][boxBorder + deltaBB] = xTrial[0];
-        prtcls[0][1][boxBorder + deltaBB] = yTrial[0];
-        prtcls[0][2][boxBorder + deltaBB] = zTrial[0];
-        prtcls[1][0][boxBorder + deltaBB] = xTrial[1];
-        prtcls[1][1][boxBorder + deltaBB] = yTrial[1];
-        prtcls[1][2][boxBorder + deltaBB] = zTrial[1];
-
-        boxBorder = (deltaBB == 0) ? boxBorder + 1 : boxBorder - 1;
+        for (int type = 0; type < 2; type++) {
+            final double[][] coords = prtcls[type];
+            if (cells != null) {
+                cells[fromBox].remove(type * Nei + trialIndex);
+            }
+
+            if (border != trialIndex) {
+                coords[0][trialIndex] = coords[0][border];
+                coords[1][trialIndex] = coords[1][border];
+                coords[2][trialIndex] = coords[2][border];
+                if (cells != null) {
+                    cells[fromBox].remove(type * Nei + border);
+                    cells[fromBox].add(type * Nei + trialIndex, coords[0][trialIndex],
+                                       coords[1][trialIndex], coords[2][trialIndex]);
+                }
+            }
+
+            coords[0][border] = xTrial[type];
+            coords[1][border] = yTrial[type];
+            coords[2][border] = zTrial[type];
+            if (cells != null) {
+                cells[1 - fromBox].add(type * Nei + border, xTrial[type], yTrial[type], zTrial[type]);
+            }
+        }
+
+        boxBorder = (fromBox == 0) ? boxBorder - 1 : boxBorder + 1;
         updateLengths();
         updateDeltaX();
     }
 
+    /**
+     * Event chain has moved particles in place already, box shifts are summed by the chain
+     * pair by pair (full sums are left to the periodic drift check)
+     */
+    private void acceptEventChain() {
+        if (!isEnergyPotential()) {
+            resyncBox(lastBox);
+            return;
+        }
+
+        boxPotential[lastBox] += trialShift[lastBox];
+        boxEnergy[lastBox] += trialShift[lastBox];
+        if (scaling != null) {
+            boxRepulsion[lastBox] += eventChain.getRepulsionShift();
+        }
+    }
+
     /**
      * Actually updates all 'trial' particle coordinates in the given box
      */
     private final void acceptParticleMove() {
+        boxPotential[lastBox] += trialShift[lastBox];
+        boxEnergy[lastBox] += isEnergyPotential() ? trialShift[lastBox] : particleShift(ENERGY);
+        if (scaling != null) {
+            boxRepulsion[lastBox] += particleShift(REPULSION);
+        }
+
         prtcls[trialType][0][trialIndex] = xTrial[0];
         prtcls[trialType][1][trialIndex] = yTrial[0];
         prtcls[trialType][2][trialIndex] = zTrial[0];
+
+        if (cells != null) {
+            cells[lastBox].move(trialType * Nei + trialIndex, xTrial[0], yTrial[0], zTrial[0]);
+        }
+    }
+
+
+    // ------------- Neighbour cells -----------------------------------------------------
+
+    /**
+     * Per box cells, if the pair potential is cut by {@link #getCutoff()}
+     */
+    private void initCells() {
+        cutoff = getCutoff();
+        if (cutoff <= 0) return;
+
+        cells = new CellList[2];
+        for (int box = 0; box < 2; box++) {
+            cells[box] = new CellList(1.0, cutoff / boxSize[box], 2 * Nei);
+            fillCells(box);
+        }
+    }
+
+    private void fillCells(int box) {
+        final CellList list = cells[box];
+        final int from = box * boxBorder;
+        final int to = from + lengths[box];
+
+        list.clear();
+        for (int type = 0; type < 2; type++) {
+            for (int i = from; i < to; i++) {
+                list.add(type * Nei + i, prtcls[type][0][i], prtcls[type][1][i], prtcls[type][2][i]);
+            }
+        }
+    }
+
+    /**
+     * Cells of the unit box of the fractions, particles stay in their cells with the box. New
+     * cells only if the number of cells changes.
+     */
+    private void resizeCells(int box) {
+        if (CellList.cellsPerSide(1.0, cutoff / boxSize[box]) != cells[box].getCellsPerSide()) {
+            cells[box] = new CellList(1.0, cutoff / boxSize[box], 2 * Nei);
+            fillCells(box);
+        }
+    }
+
+    /**
+     * @return true if the box cells may be used for the given (trial) box size
+     */
+    private boolean cellsFit(int box, double box_size) {
+        final int perSide = cells[box].getCellsPerSide();
+        return perSide < 3 || box_size / perSide >= cutoff;
     }
 
 
@@ -430,6 +587,7 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
      */
     private void initEnergy() {
         for (int i = 0; i < 2; i++) {
+            resyncBox(i);
             if (currentEnergy[i] == 0) {
                 newEnergyStep(i);
             } else {
@@ -443,52 +601,53 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
      * Record current energy value to averager array
      */
     private final void newEnergyStep(int box) {
-        currentEnergy[box] = getCurrentEnergy(box) / (2. * lengths[box]);
+        currentEnergy[box] = boxEnergy[box] / (2. * lengths[box]);
         oldEnergyStep(box);
     }
 
+    /**
+     * Compares tracked box energies with the full sums and drops accumulated rounding errors
+     */
+    private void checkEnergyDrift() {
+        for (int box = 0; box < 2; box++) {
+            final double tracked = boxEnergy[box];
+            resyncBox(box);
+            final double exact = boxEnergy[box];
+            final double drift = tracked - exact;
+
+            if (Math.abs(drift) > ENERGY_DRIFT_TOLERANCE * Math.max(1.0, Math.abs(exact))) {
+                System.out.println("WARNING: " + myFolder + " box " + box + " energy drift "
+                                           + SHORT_FORMAT.format(drift) + " on step " + getCurrStep());
+            }
+        }
+    }
+
+    /**
+     * Tracked box energy, potential and repulsion from scratch
+     */
+    private void resyncBox(int box) {
+        boxPotential[box] = getCurrentPotential(box, boxSize[box]);
+        boxEnergy[box] = isEnergyPotential() ? boxPotential[box] : getCurrentEnergy(box);
+        if (scaling != null) {
+            boxRepulsion[box] = boxPairsSum(box, boxSize[box], REPULSION);
+        }
+    }
+
     private final void oldEnergyStep(int box) {
-        if (reducedEnergies[box].size() > avgPoints - 1) reducedEnergies[box].pollLast();
-        reducedEnergies[box].addFirst(currentEnergy[box]);
+        reducedEnergies[box].offer(currentEnergy[box]);
     }
 
 
     /**
-     * Total potential energy of a box inside given particls array.
-     * Global boxBorder and lengths[] are used (assuming prtcls and trialPrtcls are different in
-     * volumes only).
+     * Total potential energy of a box of given size (current or trial one).
+     * Global boxBorder and lengths[] are used.
      *
      * @param whichBox
      * @return potential energy for current coords
      */
-    protected final double getCurrentPotential(final double[][][] particls, final int whichBox,
-                                               final double half_box) {
-        double newPot = 0.0;
-        final int length = lengths[whichBox];
-        final int offset = whichBox * boxBorder;
-
-
-        for (int i = 0; i < length * 2; i++) {
-            for (int j = i + 1; j < length * 2; j++) {
-                final int x1 = i / length;
-                final int x2 = j / length;
-                final int y1 = (i % length) + offset;
-                final int y2 = (j % length) + offset;
-
-                newPot = newPot +
-                        getPotential(x1,
-                                     particls[x1][0][y1],
-                                     particls[x1][1][y1],
-                                     particls[x1][2][y1],
-                                     x2,
-                                     particls[x2][2][y2],
-                                     particls[x2][2][y2],
-                                     particls[x2][2][y2],
-                                     half_box
-                        );
-            }
-        }
-        return newPot;
+    protected final double getCurrentPotential(final int whichBox, final double box_size) {
+        return tailEnergy(2 * lengths[whichBox], box_size)
+                + boxPairsSum(whichBox, box_size, POTENTIAL);
     }
 
     /**
@@ -498,29 +657,101 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
      * @param whichBox (0 for first box, 1 - for second)
      */
     protected final double getCurrentEnergy(final int whichBox) {
-        double newEn = 0;
-        final int length = lengths[whichBox];
-        final int offset = (whichBox == 0) ? 0 : boxBorder;
-
-        for (int i = 0; i < length * 2; i++) {
-            for (int j = i + 1; j < length * 2; j++) {
-                newEn = newEn +
-                        getEnergy(
-                                i / length, (i % length) + offset,
-                                j / length, (j % length) + offset,
-                                whichBox);
+        return tailEnergy(2 * lengths[whichBox], boxSize[whichBox])
+                + boxPairsSum(whichBox, boxSize[whichBox], ENERGY);
+    }
+
+    /**
+     * All pairs of the box of given size, neighbour cells pairs only if cut
+     *
+     * @param kind POTENTIAL, ENERGY or REPULSION pair terms
+     */
+    private double boxPairsSum(final int whichBox, final double box_size, final int kind) {
+        if (cells != null && cellsFit(whichBox, box_size)) {
+            return cellsPairsSum(whichBox, box_size, kind);
+        }
+
+        double result = 0;
+        final int from = whichBox * boxBorder;
+        final int to = from + lengths[whichBox];
+
+        for (int type1 = 0; type1 < 2; type1++) {
+            for (int type2 = type1; type2 < 2; type2++) {
+                final IPairPotential pair = pairs[type1][type2];
+
+                for (int i = from; i < to; i++) {
+                    final double x = prtcls[type1][0][i];
+                    final double y = prtcls[type1][1][i];
+                    final double z = prtcls[type1][2][i];
+
+                    for (int j = (type1 == type2) ? i + 1 : from; j < to; j++) {
+                        result = result + pairTerm(pair,
+                                                   dSquared(x - prtcls[type2][0][j],
+                                                            y - prtcls[type2][1][j],
+                                                            z - prtcls[type2][2][j],
+                                                            box_size),
+                                                   kind);
+                    }
+                }
             }
         }
-        return newEn;
+        return result;
     }
 
+    /**
+     * @param kind POTENTIAL, ENERGY or REPULSION (r^-12 part of the scaling potential)
+     */
+    private double pairTerm(final IPairPotential pair, final double r2, final int kind) {
+        switch (kind) {
+            case POTENTIAL:
+                return pair.getPotential(r2);
+            case ENERGY:
+                return pair.getEnergy(r2);
+            default:
+                return scaling.getRepulsion(r2);
+        }
+    }
 
-    private final void averageEnergy(int box) {
-        double enrg = 0.0;
-        for (Double val : reducedEnergies[box]) {
-            enrg = enrg + val;
+    /**
+     * Pairs of the box from the neighbour cells, every pair once. The cells are the same for
+     * scaled trial coordinates.
+     *
+     * @param kind POTENTIAL, ENERGY or REPULSION pair terms
+     */
+    private double cellsPairsSum(final int whichBox, final double box_size, final int kind) {
+        final CellList list = cells[whichBox];
+        final int from = whichBox * boxBorder;
+        final int to = from + lengths[whichBox];
+        double result = 0;
+
+        for (int type1 = 0; type1 < 2; type1++) {
+            for (int i = from; i < to; i++) {
+                final int self = type1 * Nei + i;
+                final double x = prtcls[type1][0][i];
+                final double y = prtcls[type1][1][i];
+                final double z = prtcls[type1][2][i];
+
+                for (int cell : list.getNeighbours(list.getCell(self))) {
+                    for (int j = list.getFirst(cell); j >= 0; j = list.getNext(j)) {
+                        if (j <= self) continue;
+
+                        final int type2 = j / Nei;
+                        final int index = j - type2 * Nei;
+                        final IPairPotential pair = pairs[type1][type2];
+                        final double r2 = dSquared(x - prtcls[type2][0][index],
+                                                   y - prtcls[type2][1][index],
+                                                   z - prtcls[type2][2][index],
+                                                   box_size);
+                        result += pairTerm(pair, r2, kind);
+                    }
+                }
+            }
         }
-        reducedEnrgyAvg[box] = enrg / reducedEnergies[box].size();
+        return result;
+    }
+
+    private final void averageEnergy(int box) {
+        reducedEnrgyAvg[box] = reducedEnergies[box].average();
     }
 
 
@@ -538,6 +769,8 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
                 return testChangeV();
             case 2:
                 return testSwitchParticles();
+            case 3:
+                return testEventChain();
             default:
                 throw new IllegalStateException("Unknown MC test move type! Can't go on.");
         }
@@ -548,7 +781,7 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
 
     /**
      * deltaX[], volumes, boxSizes and densities must be updated on accepted move,
-     * as well as prtcls array switched to new trialPrtcls.
+     * Particles are not touched, fractions are the same in the trial boxes.
      *
      * @return probability coefficient for trial volume change of the Volume 1
      */
@@ -560,9 +793,6 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
         trialBoxSize[0] = FastMath.cbrt(trialV0) / BOHR;
         trialBoxSize[1] = FastMath.cbrt(Volume - trialV0) / BOHR;
 
-        // 0. fill trialPrtcls array
-        scaleTrialPrtcls();
-
         final double NVcoeff = Math.log(trialV0 / V[0]) * lengths[0] * 2 + Math.log((V[1] - deltaV) / V[1]) * lengths[1] * 2;
 
         double res = FastMath.exp(NVcoeff - deltaTrialPotential());
@@ -585,62 +815,45 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
 
 
     /**
-     * Scaled coulomb version. Doesn't work for arbitrary potential
+     * Scaled coulomb version, potential energy is proportional to ~ 1/R. Doesn't work for
+     * arbitrary potential, cores are scaled as well.
      */
-    protected double deltaTrialPotentialCoulomb() {
-        // 1. find prtcls and trialPrtcls array potential energies
-        final double prtclsE_box1 = getCurrentPotential(prtcls, 0, halfBox[0]);
-        final double prtclsE_box2 = getCurrentPotential(prtcls, 1, halfBox[1]);
-
-//        potential energy is proportional to ~ R          !!! — NOT THE CASE in LennardJohnes!!!
-        final double trialE_box1 = prtclsE_box1 * (trialBoxSize[0] / boxSize[0]);
-        final double trialE_box2 = prtclsE_box2 * (trialBoxSize[1] / boxSize[1]);
+    protected final double deltaTrialPotentialCoulomb() {
+        trialPotential[0] = boxPotential[0] * (boxSize[0] / trialBoxSize[0]);
+        trialPotential[1] = boxPotential[1] * (boxSize[1] / trialBoxSize[1]);
 
-        return (trialE_box1 + trialE_box2) - (prtclsE_box1 + prtclsE_box2);
+        return (trialPotential[0] + trialPotential[1]) - (boxPotential[0] + boxPotential[1]);
     }
 
     /**
-     * Must return current prtcls potential minus trialPrtcls potential energy: NewE - OldE
-     * <p/>
-     * Calculates "V LOB" by default
+     * Scaled Lennard–Johnes version, exact without cutoff: r^-12 and r^-6 parts of the box
+     * potentials are proportional to ~ R^-12 and R^-6
      */
-    protected double deltaTrialPotential() {
-        // 1. find prtcls and trialPrtcls array potential energies
-        final double prtclsE = getCurrentPotential(prtcls, 0, halfBox[0]) + getCurrentPotential(prtcls, 1, halfBox[1]);
-
-        final double trialE = getCurrentPotential(trialPrtcls, 0, trialBoxSize[0] / 2.0)
-                + getCurrentPotential(trialPrtcls, 1, trialBoxSize[1] / 2.0);
+    private double deltaTrialPotentialLJ() {
+        for (int box = 0; box < 2; box++) {
+            final double f = boxSize[box] / trialBoxSize[box];
+            final double f6 = f * f * f * f * f * f;
+            trialPotential[box] = boxRepulsion[box] * f6 * f6
+                    + (boxPotential[box] - boxRepulsion[box]) * f6;
+        }
 
-        return trialE - prtclsE;
+        return (trialPotential[0] + trialPotential[1]) - (boxPotential[0] + boxPotential[1]);
     }
 
     /**
-     * Copies all prtcs coords to trialPrtcls with scaled coords, according to trialBoxSize[] data
+     * Must return current prtcls potential minus trial boxes potential energy: NewE - OldE
+     * <p/>
+     * Scaled by {@link #getScalingPotential()} if any, otherwise "V LOB" of the trial boxes
      */
-    private void scaleTrialPrtcls() {
-        final double[] scalingCoeff = new double[]{
-                trialBoxSize[0] / boxSize[0],
-                trialBoxSize[1] / boxSize[1]};
-
-        // scale all the particles coords (copy scaled coordinates to trialPrtcls array)
-        for (int type = 0; type < 2; type++) {
-            for (int i = 0; i < Nei; i++) {
-                copyCoords(scalingCoeff[(i < boxBorder) ? 0 : 1], type, i);
-            }
+    protected double deltaTrialPotential() {
+        if (scaling != null) {
+            return deltaTrialPotentialLJ();
         }
-    }
 
-    /**
-     * Copy given XYZ coords from prtcls -> trialPrtcls with given scaling factor
-     *
-     * @param scalingCoeff
-     * @param type
-     * @param i
-     */
-    private final void copyCoords(final double scalingCoeff, final int type, final int i) {
-        trialPrtcls[type][0][i] = prtcls[type][0][i] * scalingCoeff;
-        trialPrtcls[type][1][i] = prtcls[type][1][i] * scalingCoeff;
-        trialPrtcls[type][2][i] = prtcls[type][2][i] * scalingCoeff;
+        trialPotential[0] = getCurrentPotential(0, trialBoxSize[0]);
+        trialPotential[1] = getCurrentPotential(1, trialBoxSize[1]);
+
+        return (trialPotential[0] + trialPotential[1]) - (boxPotential[0] + boxPotential[1]);
     }
 
     /**
@@ -664,27 +877,18 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
 //                                   + ", expoCoeff: " + expoCoefficient);
 
         // new random test coordinates of particle pair in new box
-        xTrial[0] = myRandom(boxSize[toBox]);
-        yTrial[0] = myRandom(boxSize[toBox]);
-        zTrial[0] = myRandom(boxSize[toBox]);
-        xTrial[1] = myRandom(boxSize[toBox]);
-        yTrial[1] = myRandom(boxSize[toBox]);
-        zTrial[1] = myRandom(boxSize[toBox]);
+        xTrial[0] = myRandom(1.0);
+        yTrial[0] = myRandom(1.0);
+        zTrial[0] = myRandom(1.0);
+        xTrial[1] = myRandom(1.0);
+        yTrial[1] = myRandom(1.0);
+        zTrial[1] = myRandom(1.0);
 
 
+        switchShifts(POTENTIAL, trialShift);
+
         // delta energy of particle pair transfer - !!! with inverted sign, to use in exp(...)
-        final double total_dE =   // Calculate potential change in fromBox
-                potentialOfPair(fromBox,
-                                trialIndex,
-                                new double[]{prtcls[0][0][trialIndex], prtcls[1][0][trialIndex]},
-                                new double[]{prtcls[0][1][trialIndex], prtcls[1][1][trialIndex]},
-                                new double[]{prtcls[0][2][trialIndex], prtcls[1][2][trialIndex]})
-                        -
-                        potentialOfPair(toBox,
-                                        trialIndex,
-                                        xTrial,
-                                        yTrial,
-                                        zTrial); // same change in toBox
+        final double total_dE = -(trialShift[0] + trialShift[1]);
 
 
         // XXX todo: remove after debug
@@ -698,36 +902,69 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
         return FastMath.exp(total_dE) * expoCoefficient;
     }
 
+    /**
+     * Box potential (or energy) shifts of the trialIndex pair switch to xTrial, yTrial, zTrial
+     * coordinates in the other box, particles numbers tail corrections included
+     *
+     * @param kind POTENTIAL, ENERGY or REPULSION pair terms
+     * @param shifts [box] shifts output
+     */
+    private void switchShifts(final int kind, final double[] shifts) {
+        final int fromBox = (trialIndex < boxBorder) ? 0 : 1;
+        final int toBox = 1 - fromBox;
+
+        shifts[fromBox] = tailEnergy(2 * lengths[fromBox] - 2, boxSize[fromBox])
+                - tailEnergy(2 * lengths[fromBox], boxSize[fromBox])
+                - potentialOfPair(fromBox, trialIndex,
+                                  prtcls[0][0][trialIndex],
+                                  prtcls[0][1][trialIndex],
+                                  prtcls[0][2][trialIndex],
+                                  prtcls[1][0][trialIndex],
+                                  prtcls[1][1][trialIndex],
+                                  prtcls[1][2][trialIndex],
+                                  kind);
+
+        shifts[toBox] = tailEnergy(2 * lengths[toBox] + 2, boxSize[toBox])
+                - tailEnergy(2 * lengths[toBox], boxSize[toBox])
+                + potentialOfPair(toBox, trialIndex,
+                                  xTrial[0], yTrial[0], zTrial[0],
+                                  xTrial[1], yTrial[1], zTrial[1],
+                                  kind);
+    }
+
     /**
      * Calculates the potential energy value of a given pair inside a box (in the main 'prtcls'
      * array)
      *
      * @param box       box relative to which potential is calculated
      * @param pairIndex which pair inside prtcls to calculate
-     * @param x         double[] {[type1], [type2]} – x coordinates of the pair (either current or test)
-     * @param y         double[] {[type1], [type2]} – y coordinates of the pair (either current or test)
-     * @param z         double[] {[type1], [type2]} – z coordinates of the pair (either current or test)
+     * @param x0,y0,z0  electron coordinates (either current or test)
+     * @param x1,y1,z1  ion coordinates (either current or test)
+     * @param kind      POTENTIAL, ENERGY or REPULSION pair terms
      * @return the value of a potential energy that given pair would add up to the total box energy
      */
     private final double potentialOfPair(int box, int pairIndex,
-                                         final double[] x,
-                                         final double[] y,
-                                         final double[] z
+                                         final double x0, final double y0, final double z0,
+                                         final double x1, final double y1, final double z1,
+                                         final int kind
     ) {
-        return sumPotential(0, pairIndex, // first particle energy in old box
-                            x[0], y[0], z[0],
+        final int from = box * boxBorder;
+        final boolean inBox = pairIndex >= from && pairIndex < from + lengths[box];
+
+        // the pair term itself is in both sums if the pair is in the box, not at all otherwise
+        final IPairPotential pair = pairs[0][1];
+        final double r2 = dSquared(x0 - x1, y0 - y1, z0 - z1, boxSize[box]);
+        final double pairTerm = pairTerm(pair, r2, kind);
+
+        return sumPotential(0, pairIndex, // first particle energy in the box
+                            x0, y0, z0,
                             prtcls,
-                            box, halfBox[box]) +
-                sumPotential(1, pairIndex, // second particle energy in old box
-                             x[1], y[1], z[1],
+                            box, boxSize[box], kind) +
+                sumPotential(1, pairIndex, // second particle energy in the box
+                             x1, y1, z1,
                              prtcls,
-                             box, halfBox[box])
-                - // minus the interparticle energy (counted twice)
-                getPotential(0,
-                             x[0], y[0], z[0],
-                             1,
-                             x[1], y[1], z[1],
-                             halfBox[box]);
+                             box, boxSize[box], kind)
+                + (inBox ? -pairTerm : pairTerm);
     }
 
     /**
@@ -744,22 +981,32 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
         trialType = which / length;
         trialIndex = (which % length) + offset;
 
-        final double x = myRandom() * deltaX[lastBox];
-        final double y = myRandom() * deltaX[lastBox];
-        final double z = myRandom() * deltaX[lastBox];
+        // box fractions
+        final double maxDelta = deltaX[lastBox] / boxSize[lastBox];
+        final double x = myRandom() * maxDelta;
+        final double y = myRandom() * maxDelta;
+        final double z = myRandom() * maxDelta;
 
-        xTrial[0] = correctPosition(prtcls[trialType][0][trialIndex] + x, boxSize[lastBox]);
-        yTrial[0] = correctPosition(prtcls[trialType][1][trialIndex] + y, boxSize[lastBox]);
-        zTrial[0] = correctPosition(prtcls[trialType][2][trialIndex] + z, boxSize[lastBox]);
+        xTrial[0] = correctPosition(prtcls[trialType][0][trialIndex] + x);
+        yTrial[0] = correctPosition(prtcls[trialType][1][trialIndex] + y);
+        zTrial[0] = correctPosition(prtcls[trialType][2][trialIndex] + z);
 
-        // Calculating the potential shift
+        trialShift[lastBox] = particleShift(POTENTIAL);
+        return trialShift[lastBox];
+    }
+
+    /**
+     * @param kind POTENTIAL, ENERGY or REPULSION pair terms
+     * @return box potential (or energy) shift of the trial particle move
+     */
+    private double particleShift(final int kind) {
         // firstly, old Energy
         final double oldE = sumPotential(trialType, trialIndex,
                                          prtcls[trialType][0][trialIndex],
                                          prtcls[trialType][1][trialIndex],
                                          prtcls[trialType][2][trialIndex],
                                          prtcls,
-                                         lastBox, halfBox[lastBox]
+                                         lastBox, boxSize[lastBox], kind
         );
 
         // then, new Energy
@@ -769,18 +1016,37 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
                                          yTrial[0],
                                          zTrial[0],
                                          prtcls,
-                                         lastBox, halfBox[lastBox]
+                                         lastBox, boxSize[lastBox], kind
         );
 
-
         return newE - oldE;
     }
 
+    /**
+     * Event chain of EVENT_CHAIN_LENGTH avg. distances from a random particle of a random box
+     *
+     * @return 1, event chain moves are always accepted
+     */
+    private double testEventChain() {
+        lastBox = nextInt(2);
+        final int length = lengths[lastBox];
+        final int which = nextInt(length * 2);
+        final int offset = (lastBox == 0) ? 0 : boxBorder;
+        final double avgDistance = boxSize[lastBox] / FastMath.cbrt(2 * length);
+
+        trialShift[lastBox] = eventChain.run(prtcls, (cells != null) ? cells[lastBox] : null,
+                                             lastBox, offset, offset + length, boxSize[lastBox],
+                                             nextInt(3), which / length, (which % length) + offset,
+                                             CLOptions.EVENT_CHAIN_LENGTH * avgDistance);
+        return 1;
+    }
+
     /**
      * Sum of the potentials between given particle (with given coords) and all other particles in
      * the box
      *
      * @param whichBox in which box is summation
+     * @param kind     POTENTIAL, ENERGY or REPULSION pair terms
      * @return
      */
     private double sumPotential(
@@ -788,23 +1054,63 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
             final double x, final double y, final double z,
             final double[][][] particls,
             final int whichBox,
-            final double halfbox
+            final double box_size,
+            final int kind
     ) {
         final int length = lengths[whichBox];
         final int offset = whichBox * boxBorder;
 
         double result = 0.0;
 
+        if (cells != null) {
+            final CellList list = cells[whichBox];
+            final int self = particleType * Nei + particleIndex;
+
+            for (int cell : list.getNeighbours(list.cellOf(x, y, z))) {
+                for (int j = list.getFirst(cell); j >= 0; j = list.getNext(j)) {
+                    if (j == self) continue;
+
+                    final int type = j / Nei;
+                    final int index = j - type * Nei;
+                    final IPairPotential pair = pairs[type][particleType];
+                    final double r2 = dSquared(particls[type][0][index] - x,
+                                               particls[type][1][index] - y,
+                                               particls[type][2][index] - z,
+                                               box_size);
+                    result = result + (pairTerm(pair, r2, kind));
+                }
+            }
+            return result;
+        }
+
+        if (kernelR2 != null && kind == POTENTIAL) {
+            for (int type = 0; type < 2; type++) {
+                final IPairPotential pair = pairs[type][particleType];
+
+                if (type == particleType && particleIndex >= offset
+                        && particleIndex < offset + length) { // skipping the particle itself
+                    result = result
+                            + sumBatched(pair, type, offset, particleIndex, x, y, z, particls, box_size)
+                            + sumBatched(pair, type, particleIndex + 1, offset + length, x, y, z,
+                                         particls, box_size);
+                } else {
+                    result = result
+                            + sumBatched(pair, type, offset, offset + length, x, y, z, particls, box_size);
+                }
+            }
+            return result;
+        }
 
         for (int type = 0; type < 2; type++) {
+            final IPairPotential pair = pairs[type][particleType];
+
             for (int i = offset; i < length + offset; i++) {
                 if (type != particleType || i != particleIndex) {
-                    result = result + getPotential(type,
-                                                   particls[type][0][i],
-                                                   particls[type][1][i],
-                                                   particls[type][2][i],
-                                                   particleType,
-                                                   x, y, z, halfbox);
+                    final double r2 = dSquared(particls[type][0][i] - x,
+                                               particls[type][1][i] - y,
+                                               particls[type][2][i] - z,
+                                               box_size);
+                    result = result + (pairTerm(pair, r2, kind));
                 }
             }
         }
@@ -812,133 +1118,109 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
     }
 
 
-    private final double dSquared(double dx, double dy, double dz, final double halfbox) {
-        dx = fit2box(dx, halfbox);
-        dy = fit2box(dy, halfbox);
-        dz = fit2box(dz, halfbox);
-        return ((dx * dx) + (dy * dy) + (dz * dz));
+    /**
+     * Batched kernel sum of the potentials between (x, y, z) and type particles in [from, to)
+     */
+    private double sumBatched(final IPairPotential pair, final int type,
+                              final int from, final int to,
+                              final double x, final double y, final double z,
+                              final double[][][] particls, final double box_size) {
+        return PairKernels.sumFractionPotentials(pair, particls[type][0], particls[type][1],
+                                                 particls[type][2], from, to, x, y, z, box_size,
+                                                 kernelR2, kernelOut);
     }
 
-    private final double fit2box(double dx, final double halfbox) {
-//        dx = abs(dx);
-//        return (dx > halfBox) ? (halfBox - dx % halfBox) : dx;
-        if (dx > halfbox) {
-            dx -= (halfbox + halfbox);
-        } else if (dx < -halfbox) {
-            dx += (halfbox + halfbox);
-        }
-        return dx;
+    /**
+     * @param dx,dy,dz box fractions differences
+     * @return minimum image squared distance (in Bohrs^2)
+     */
+    private final double dSquared(double dx, double dy, double dz, final double box_size) {
+        dx -= Math.rint(dx);
+        dy -= Math.rint(dy);
+        dz -= Math.rint(dz);
+        return box_size * box_size * ((dx * dx) + (dy * dy) + (dz * dz));
     }
 
     /**
-     * set right position inside the Box
+     * set right fraction position inside the Box
      */
-    private final double correctPosition(final double coord, final double box_size) {
-        return ((box_size + coord % box_size) % box_size);
+    private final double correctPosition(final double coord) {
+        return ((1.0 + coord % 1.0) % 1.0);
     }
 
 
     // ----------------- Potential & Energies ----------------------------------
 
-    /*
-     * Two particle potential value between given particles with given coordinates.
-     *
-     * @param type1,2  – first particle type in prtcls[type][][] array
-     * @param num1     – first particle number in prtcls[][][num] array
-     * @param particls - which particles array to use (either main or test)
-     * @param whichBox - which box parameters to use (boxSize, halfSize, etc.)
-     * @return energy value in kT units
-     */
-    /*private final double getPotential(
-            final int type1, final int num1,
-            final int type2, final int num2,
-            final double trialX, final double trialY, final double trialZ,
-            final double[][][] particls,
-            final int whichBox
-    ) {
-        if (type1 == type2 && num1 == num2) {
-            return 0;
-        }
-
-        return getPotential(type1,
-                            particls[type1][0][num1],
-                            particls[type1][1][num1],
-                            particls[type1][2][num1],
-                            type2, trialX, trialY, trialZ,
-                            whichBox);
-    } */
-
-    private final double getPotential(final int type1,
-                                      final double x1,
-                                      final double y1,
-                                      final double z1,
-                                      final int type2,
-                                      final double x2,
-                                      final double y2,
-                                      final double z2,
-                                      final double halfbox
-    ) {
-        final double r = Math.sqrt(dSquared(x1 - x2, y1 - y2, z1 - z2, halfbox));
-
-        if (type1 == 0)   // Electrons
-        {
-            if (type2 == 0) // E-E
-                return getPotentialAsym(r, true, false);
-            else              // E-I
-                return getPotentialAsym(r, false, false);
-        } else                   // Ions
-        {
-            if (type2 == 0) // I-E
-                return getPotentialAsym(r, false, false);
-            else              // I-I
-                return getPotentialAsym(r, false, true);
-        }
+    /**
+     * Resolves species pair potentials once, before any energy calculation. Tabulated if
+     * enabled by {@link CLOptions#POTENTIAL_TABLE_CELLS}, table covers any box up to total volume.
+     */
+    private void initPairPotentials() {
+        final double maxHalfBox = FastMath.cbrt(Volume) / BOHR / 2.0;
+        final double maxR2 = 3 * maxHalfBox * maxHalfBox;
+
+        pairs[0][0] = PotentialTable.tabulate(createPairPotential(true, false), maxR2, "e-e");
+        pairs[1][1] = PotentialTable.tabulate(createPairPotential(false, true), maxR2, "i-i");
+        pairs[0][1] = PotentialTable.tabulate(createPairPotential(false, false), maxR2, "i-e");
+        pairs[1][0] = pairs[0][1];
     }
 
-
-    protected abstract double getPotentialAsym(double r, boolean ee, boolean ii);
+    /**
+     * Factory method for species pair interactions. Called once from {@link #loadState()}, so
+     * all subclass fields are already initialized.
+     *
+     * @param ee electron-electron pair
+     * @param ii ion-ion pair (both false – ion-electron pair)
+     */
+    protected abstract IPairPotential createPairPotential(boolean ee, boolean ii);
 
     /**
-     * Two particle energy value between particles with given coordinates.
+     * Factory method for event chain displacements, enabled by
+     * {@link CLOptions#EVENT_CHAIN_LENGTH}. Called once from {@link #loadState()}.
      *
-     * @param type1,2  – first particle type in prtcls[type][][] array
-     * @param num1,2   – first particle number in prtcls[][][num] array
-     * @param whichBox - which box parameters to use (boxSize, halfSize, etc.)
-     * @return energy value in kT units
-     */
-    private final double getEnergy(final int type1, final int num1,
-                                   final int type2, final int num2,
-                                   final int whichBox) {
-
-        final double r = Math.sqrt(
-                dSquared(
-                        prtcls[type1][0][num1] - prtcls[type2][0][num2],
-                        prtcls[type1][1][num1] - prtcls[type2][1][num2],
-                        prtcls[type1][2][num1] - prtcls[type2][2][num2],
-                        whichBox)
-        );
+     * @return null if not supported by the pair potential, Metropolis displacements are used
+     */
+    LennardJonesEventChain createEventChain() {
+        return null;
+    }
 
-        if (type1 == type2 && num1 == num2) {
-            return 0;
-        }
+    /**
+     * Scaling decomposition of the volume trial potentials instead of the full sums, pairs
+     * must be Lennard–Johnes without cutoff. Called once from {@link #loadState()}.
+     *
+     * @return null if not applicable
+     */
+    LennardJonesPotential getScalingPotential() {
+        return null;
+    }
 
-        if (type1 == 0)   // Electrons
-        {
-            if (type2 == 0) // E-E
-                return getEnergyAsym(r, true, false);
-            else              // E-I
-                return getEnergyAsym(r, false, false);
-        } else                   // Ions
-        {
-            if (type2 == 0) // I-E
-                return getEnergyAsym(r, false, false);
-            else              // I-I
-                return getEnergyAsym(r, false, true);
-        }
+    /**
+     * @return true if pair energies equal pair potentials, so the trial moves potential shifts
+     * are box energy shifts as well. Otherwise energy shifts are summed for accepted moves.
+     */
+    protected boolean isEnergyPotential() {
+        return false;
     }
 
-    protected abstract double getEnergyAsym(double r, boolean ee, boolean ii);
+    /**
+     * @return pair potential cutoff (in Bohrs), pairs in the neighbour cells only are summed.
+     * 0 – minimum image pairs without cutoff
+     */
+    protected double getCutoff() {
+        return 0;
+    }
 
+    /**
+     * Long range correction for the potential cut at {@link #getCutoff()}, part of the box
+     * energy and potential
+     *
+     * @param particles number of particles in the box
+     * @param box_size  box size (in Bohrs)
+     * @return tail energy of the box (in kT)
+     */
+    protected double tailEnergy(int particles, double box_size) {
+        return 0;
+    }
 
     // -------------- Public contracts ------------------------------------------------
 
@@ -990,6 +1272,17 @@ public abstract class GibbsEnsemble extends MetropolisEnsemble {
 
     double[] getBoxSizes() {return boxSize; }
 
+    double getVolume1() {return V[0]; }
+
+    /**
+     * Restores the first box volume (in cm^3) and both box sizes, deltaX[] are to be updated
+     */
+    void setVolume1(double v1) {
+        V[0] = v1;
+        V[1] = Volume - v1;
+        updateBoxSizes(false);
+    }
+
     void setCurrReducedEnergies(double en1, double en2) {
         currentEnergy[0] = en1;
         currentEnergy[1] = en2;
@@ -10,7 +10,6 @@ import org.apache.commons.math3.util.FastMath;
  * myEpsilon HERE ACTS as Lennard-Johnes Epsilon energy factor!
  */
 public class GibbsEnsembleLJ extends GibbsEnsemble {
-    private static final double MINIMAL_DISTANCE = Double.MIN_VALUE * 100;
     private final double myEpsilon;
 
     /**
@@ -28,19 +27,6 @@ public class GibbsEnsembleLJ extends GibbsEnsemble {
                                  + ", sigma = " + SHORT_FORMAT.format(mySigma) + "\n");
     }
 
-    /**
-     * Pure Lennard–Johnes (r — in Bohr radiuses
-     * Result must be dimensionless in kT values!
-     */
-    protected final double getPotential(double r) {
-        if (r < MINIMAL_DISTANCE) {
-            return getPotential(MINIMAL_DISTANCE);
-        } else {
-            final double sr = mySigma / r;
-            return myEpsilon * 4.0 * (FastMath.pow(sr, 12) - FastMath.pow(sr, 6));
-        }
-    }
-
     /**
      * @param density - in cm-3
      * @return Ro* for Lennard–Johnes ensemble
@@ -60,21 +46,37 @@ public class GibbsEnsembleLJ extends GibbsEnsemble {
     }
 
     @Override
-    /**
-     * used to introduce not symmetric i-i & e-e potentials
-     *
-     */
-    protected double getPotentialAsym(double r, boolean ee, boolean ii) {
-        return getPotential(r);
+    protected IPairPotential createPairPotential(boolean ee, boolean ii) {
+        return new LennardJonesPotential(mySigma, myEpsilon, CLOptions.LJ_CUTOFF * mySigma);
+    }
+
+    @Override
+    protected boolean isEnergyPotential() {
+        return true;
+    }
+
+    @Override
+    protected double getCutoff() {
+        return CLOptions.LJ_CUTOFF * mySigma;
     }
 
+    @Override
+    protected double tailEnergy(int particles, double box_size) {
+        if (CLOptions.LJ_CUTOFF <= 0) return 0;
 
-    protected final double getEnergyAsym(double r, boolean ee, boolean ii) {
-        return getEnergy(r);
+        return LennardJonesPotential.tailEnergy(mySigma, myEpsilon, getCutoff(), particles,
+                                                box_size * box_size * box_size);
     }
 
+    @Override
+    LennardJonesPotential getScalingPotential() {
+        // truncated potential pairs set changes with the box
+        return (CLOptions.LJ_CUTOFF > 0) ? null : new LennardJonesPotential(mySigma, myEpsilon);
+    }
 
-    protected final double getEnergy(double r) {
-        return getPotential(r);
+    @Override
+    LennardJonesEventChain createEventChain() {
+        return new LennardJonesEventChain(this, mySigma, myEpsilon, CLOptions.LJ_CUTOFF * mySigma,
+                                          Nei);
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.butlitsky.mk.ensembles;
+
+/**
+ * Interaction of a fixed pair of particle species (ion-ion, ion-electron etc.).
+ * <p/>
+ * Instances are resolved once per ensemble, so every summation loop calls a single
+ * implementation with all the constants precomputed.
+ * <p/>
+ * Distances are passed squared (in Bohr radiuses^2), results are in kT units.
+ */
+public interface IPairPotential {
+
+    /**
+     * pair potential used in the Metropolis criteria
+     */
+    double getPotential(double r2);
+
+    /**
+     * pair contribution to the total system energy (may differ from potential, e.g. polochka
+     * plateau makes zero contribution)
+     */
+    double getEnergy(double r2);
+
+    /**
+     * Batched potentials: out[i] = getPotential(r2[i]) for i in [from, to). Implementations
+     * keep the loop free of calls and branches where possible, so the JIT can vectorize it.
+     *
+     * @return sum of the calculated potentials
+     */
+    double sumPotentials(double[] r2, double[] out, int from, int to);
+
+    /**
+     * Analytic slope bound beyond the distance: max |dU/dr| of the potential for all distances
+     * not less than r (in kT/Bohr). Infinite if the potential jumps there (cutoff, core edge).
+     */
+    double getMaxSlope(double r);
+}
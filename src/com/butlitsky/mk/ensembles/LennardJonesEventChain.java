@@ -0,0 +1,327 @@
+package com.butlitsky.mk.ensembles;
+
+/**
+ * Event-chain (rejection free, irreversible) displacement move for Lennard–Johnes particles,
+ * Bernard, Krauth, Wilson, Phys. Rev. E 80, 056704 (2009), Michel, Kapfer, Krauth, J. Chem.
+ * Phys. 140, 054116 (2014).
+ * <p/>
+ * The active particle moves along +x, +y or +z. Every pair with the active particle draws its
+ * own energy budget -ln(u) and consumes it by its pair energy increases only (factorized
+ * Metropolis filter). The first pair to exhaust its budget stops the active particle, and the
+ * other particle of the pair goes on (lifting) until the chain displacement is used up. Pair
+ * events are solved analytically in r^2 for the minimum image (or truncated) potential.
+ * <p/>
+ * Event candidates are the particles in the neighbour cells of the active particle cell, the
+ * active particle stops at every cell border to renew them. Without a cutoff the box is a
+ * single cell.
+ * <p/>
+ * Coordinates are fractions of the box size, cells are cells of the unit box.
+ * <p/>
+ * Not thread safe.
+ */
+final class LennardJonesEventChain {
+    private final MetropolisEnsemble random;
+    private final double sigma2;
+    private final double epsilon;
+    private final double epsilon4;
+    private final double rcut;
+    private final double rcut2;
+    // potential minimum 2^(1/3) sigma^2
+    private final double rmin2;
+    // particle index in the cells is type * capacity + index
+    private final int capacity;
+
+    private final CellList[] cells = new CellList[2];
+
+    private long events = 0;
+    // r^-12 part of the pair energies shift of the last chain
+    private double repulsionShift;
+
+    /**
+     * @param random   random numbers source
+     * @param sigma    LJ sigma (in Bohrs)
+     * @param epsilon  LJ epsilon (in kT)
+     * @param rcut     cutoff of the truncated potential (in Bohrs), 0 – no cutoff
+     * @param capacity particles of every type in both boxes
+     */
+    LennardJonesEventChain(MetropolisEnsemble random, double sigma, double epsilon, double rcut,
+                           int capacity) {
+        this.random = random;
+        this.sigma2 = sigma * sigma;
+        this.epsilon = epsilon;
+        this.epsilon4 = 4 * epsilon;
+        this.rcut = rcut;
+        this.rcut2 = (rcut > 0) ? rcut * rcut : Double.POSITIVE_INFINITY;
+        this.rmin2 = sigma2 * Math.cbrt(2);
+        this.capacity = capacity;
+
+        if (rcut2 <= rmin2) {
+            throw new IllegalArgumentException("LJ cutoff must be beyond the potential minimum");
+        }
+    }
+
+    /**
+     * @return total lifting events since construction
+     */
+    long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return r^-12 part of the last chain box energy shift (in kT)
+     */
+    double getRepulsionShift() {
+        return repulsionShift;
+    }
+
+    /**
+     * Moves particles [from, to) of the box inside given particles array (box fractions) in
+     * place.
+     *
+     * @param boxCells unit box cells of the particles slots (type * capacity + index) with the
+     *                 potential cutoff, kept up to date. Null – own cells are filled
+     * @param axis   0, 1, 2 – chain direction +x, +y, +z
+     * @param type   first active particle type
+     * @param index  first active particle index
+     * @param length total chain displacement (in Bohrs)
+     * @return box energy shift of the chain (in kT), the truncated potential pairs only
+     */
+    double run(double[][][] prtcls, CellList boxCells, int box, int from, int to, double boxSize,
+             int axis, int type, int index, double length) {
+        final CellList list = (boxCells != null) ?
+                boxCells : fillCells(prtcls, box, from, to, boxSize);
+        final int perpendicular1 = (axis + 1) % 3;
+        final int perpendicular2 = (axis + 2) % 3;
+        final double halfBox = boxSize / 2;
+        final double cellSize = 1.0 / list.getCellsPerSide();
+
+        double energyShift = 0;
+        repulsionShift = 0;
+
+        double remaining = length;
+        while (remaining > 0) {
+            final double[][] active = prtcls[type];
+            final double position = active[axis][index];
+            final double p1 = active[perpendicular1][index];
+            final double p2 = active[perpendicular2][index];
+
+            // candidates are valid until the cell border
+            final double border = (list.axisCell(position) + 1) * cellSize;
+            double limit = Math.min(remaining, (border - position) * boxSize);
+            if (limit <= 0) limit = Math.ulp(border) * boxSize;
+
+            double shift = limit;
+            int nextType = -1, nextIndex = -1;
+
+            final int self = type * capacity + index;
+            for (int cell : list.getNeighbours(list.getCell(self))) {
+                for (int j = list.getFirst(cell); j >= 0; j = list.getNext(j)) {
+                    if (j == self) continue;
+
+                    final int jType = j / capacity;
+                    final int jIndex = j % capacity;
+                    final double[][] other = prtcls[jType];
+                    final double d1 = fit2box(p1 - other[perpendicular1][jIndex]) * boxSize;
+                    final double d2 = fit2box(p2 - other[perpendicular2][jIndex]) * boxSize;
+
+                    final double event = pairEvent(fit2box(position - other[axis][jIndex]) * boxSize,
+                                                   d1 * d1 + d2 * d2, shift, halfBox);
+                    if (event < shift) {
+                        shift = event;
+                        nextType = jType;
+                        nextIndex = jIndex;
+                    }
+                }
+            }
+
+            final double moved = correctPosition(position + shift / boxSize);
+
+            // pair energies shift of the active particle move, the others stand still. Both
+            // positions are in the active particle cell (or on its border)
+            for (int cell : list.getNeighbours(list.getCell(self))) {
+                for (int j = list.getFirst(cell); j >= 0; j = list.getNext(j)) {
+                    if (j == self) continue;
+
+                    final int jIndex = j % capacity;
+                    final double[][] other = prtcls[j / capacity];
+                    final double d1 = fit2box(p1 - other[perpendicular1][jIndex]) * boxSize;
+                    final double d2 = fit2box(p2 - other[perpendicular2][jIndex]) * boxSize;
+                    final double before = fit2box(position - other[axis][jIndex]) * boxSize;
+                    final double after = fit2box(moved - other[axis][jIndex]) * boxSize;
+                    final double rho2 = d1 * d1 + d2 * d2;
+                    final double before2 = before * before + rho2;
+                    final double after2 = after * after + rho2;
+
+                    energyShift += pairEnergy(after2) - pairEnergy(before2);
+                    repulsionShift += repulsion(after2) - repulsion(before2);
+                }
+            }
+
+            active[axis][index] = moved;
+            list.move(self, active[0][index], active[1][index], active[2][index]);
+            remaining -= shift;
+
+            if (nextType >= 0) { // lifting
+                type = nextType;
+                index = nextIndex;
+                events++;
+            }
+        }
+        return energyShift;
+    }
+
+    /**
+     * Reuses the box cells if the cells number is the same, all particles are indexed again
+     */
+    private CellList fillCells(double[][][] prtcls, int box, int from, int to, double boxSize) {
+        final double cutoff = (rcut > 0) ? rcut / boxSize : 1.0;
+        CellList list = cells[box];
+        if (list == null || list.getCellsPerSide() != CellList.cellsPerSide(1.0, cutoff)) {
+            list = new CellList(1.0, cutoff, 2 * capacity);
+            cells[box] = list;
+        }
+
+        list.clear();
+        for (int type = 0; type < 2; type++) {
+            for (int i = from; i < to; i++) {
+                list.add(type * capacity + i, prtcls[type][0][i], prtcls[type][1][i], prtcls[type][2][i]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Pair event of the active particle moving by s along the axis. The axis distance a grows
+     * with s, the pair energy rises on approach inside the potential minimum, on recession
+     * beyond it and by -U(Rcut) on the cutoff crossing.
+     *
+     * @param a      minimum image axis distance from the other particle to the active one
+     * @param rho2   squared minimum image distance across the axis
+     * @param limit  max displacement of interest
+     * @return displacement when the pair energy rise exceeds the pair budget, infinity if
+     * beyond limit
+     */
+    private double pairEvent(double a, double rho2, double limit, double halfBox) {
+        double budget = -1; // drawn on the first rise only
+        double s = 0;
+        while (s < limit) {
+            if (a >= halfBox) {
+                a -= halfBox + halfBox;
+            }
+            // until the limit or the other particle image switch
+            final double end = Math.min(a + (limit - s), halfBox);
+            if (end <= a) break;
+
+            if (a < 0) { // approaching
+                final double stop = Math.min(end, 0);
+                final double lo2 = stop * stop + rho2;
+
+                if (lo2 < rmin2) {
+                    final double from2 = Math.min(a * a + rho2, rmin2);
+                    final double start = energy(from2);
+                    final double rise = energy(lo2) - start;
+                    if (budget < 0) budget = budget();
+                    if (rise >= budget) {
+                        final double r2 = repulsiveR2(start + budget);
+                        return s + (-Math.sqrt(Math.max(0, r2 - rho2)) - a);
+                    }
+                    budget -= rise;
+                }
+                s += stop - a;
+                a = stop;
+            }
+
+            if (a >= 0 && a < end) { // receding
+                final double from2 = Math.max(a * a + rho2, rmin2);
+                final double hi2 = end * end + rho2;
+
+                if (hi2 > from2 && from2 < rcut2) {
+                    final double start = energy(from2);
+                    final double rise = energy(Math.min(hi2, rcut2)) - start;
+                    if (budget < 0) budget = budget();
+                    if (rise >= budget) {
+                        final double r2 = attractiveR2(start + budget);
+                        return s + (Math.sqrt(Math.max(0, r2 - rho2)) - a);
+                    }
+                    budget -= rise;
+
+                    if (hi2 >= rcut2) { // truncated potential jumps to zero
+                        final double jump = -energy(rcut2);
+                        if (jump >= budget) {
+                            return s + (Math.sqrt(Math.max(0, rcut2 - rho2)) - a);
+                        }
+                        budget -= jump;
+                    }
+                }
+                s += end - a;
+                a = end;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return pair energy budget -ln(u) (in kT)
+     */
+    private double budget() {
+        return -Math.log(1 - random.myRandom(1.0));
+    }
+
+    /**
+     * Not truncated potential
+     */
+    private double energy(double r2) {
+        final double sr2 = sigma2 / r2;
+        final double sr6 = sr2 * sr2 * sr2;
+        return epsilon4 * sr6 * (sr6 - 1.0);
+    }
+
+    /**
+     * Truncated (not shifted) potential
+     */
+    private double pairEnergy(double r2) {
+        return (r2 < rcut2) ? energy(r2) : 0;
+    }
+
+    /**
+     * r^-12 part of the truncated potential
+     */
+    private double repulsion(double r2) {
+        if (r2 >= rcut2) return 0;
+
+        final double sr2 = sigma2 / r2;
+        final double sr6 = sr2 * sr2 * sr2;
+        return epsilon4 * sr6 * sr6;
+    }
+
+    /**
+     * @return r^2 < rmin2 of the given energy
+     */
+    private double repulsiveR2(double energy) {
+        final double sr6 = (1 + Math.sqrt(Math.max(0, 1 + energy / epsilon))) / 2;
+        return sigma2 / Math.cbrt(sr6);
+    }
+
+    /**
+     * @return r^2 > rmin2 of the given negative energy
+     */
+    private double attractiveR2(double energy) {
+        final double sr6 = (1 - Math.sqrt(Math.max(0, 1 + energy / epsilon))) / 2;
+        return sigma2 / Math.cbrt(sr6);
+    }
+
+    /**
+     * @return minimum image fractions difference
+     */
+    private static double fit2box(double dx) {
+        return dx - Math.rint(dx);
+    }
+
+    /**
+     * Moved fraction back into [0, 1), shifts are not larger than the box. Exact for tiny
+     * shifts, unlike (1 + coord % 1) % 1
+     */
+    private static double correctPosition(double coord) {
+        return (coord >= 1.0) ? coord - 1.0 : coord;
+    }
+}
@@ -0,0 +1,104 @@
+package com.butlitsky.mk.ensembles;
+
+/**
+ * Pure Lennard–Johnes pair potential, energy equals potential. Evaluated in r^2 without pow().
+ * <p/>
+ * Optionally truncated (not shifted) at the cutoff distance.
+ */
+final class LennardJonesPotential implements IPairPotential {
+    private static final double MINIMAL_R2 = Double.MIN_VALUE * 100;
+
+    private final double sigma2;
+    private final double epsilon4;
+    private final double rcut2;
+
+    /**
+     * @param sigma   LJ sigma (in Bohrs)
+     * @param epsilon LJ epsilon (in kT)
+     */
+    LennardJonesPotential(double sigma, double epsilon) {
+        this(sigma, epsilon, 0);
+    }
+
+    /**
+     * @param rcut cutoff distance (in Bohrs), 0 – no cutoff
+     */
+    LennardJonesPotential(double sigma, double epsilon, double rcut) {
+        sigma2 = sigma * sigma;
+        epsilon4 = 4.0 * epsilon;
+        rcut2 = (rcut > 0) ? rcut * rcut : Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public double getPotential(double r2) {
+        if (r2 >= rcut2) return 0;
+
+        final double sr2 = sigma2 / Math.max(r2, MINIMAL_R2);
+        final double sr6 = sr2 * sr2 * sr2;
+        return epsilon4 * sr6 * (sr6 - 1.0);
+    }
+
+    /**
+     * Long range correction of the truncated potential for uniform density beyond the cutoff,
+     * Allen, Tildesley "Computer simulation of liquids"
+     *
+     * @param particles particles in the volume
+     * @param volume    in Bohrs^3
+     * @return tail energy of all particles (in kT)
+     */
+    static double tailEnergy(double sigma, double epsilon, double rcut, int particles,
+                             double volume) {
+        final double sr3 = (sigma / rcut) * (sigma / rcut) * (sigma / rcut);
+        final double density = particles / volume;
+        return 8.0 / 3.0 * Math.PI * particles * density * epsilon * sigma * sigma * sigma
+                * (sr3 * sr3 * sr3 / 3.0 - sr3);
+    }
+
+    /**
+     * @return r^-12 part of the potential (in kT), volume scaling decomposition
+     */
+    double getRepulsion(double r2) {
+        if (r2 >= rcut2) return 0;
+
+        final double sr2 = sigma2 / Math.max(r2, MINIMAL_R2);
+        final double sr6 = sr2 * sr2 * sr2;
+        return epsilon4 * sr6 * sr6;
+    }
+
+    @Override
+    public double getEnergy(double r2) {
+        return getPotential(r2);
+    }
+
+    /**
+     * |dU/dr| decreases up to the potential minimum, then grows up to the inflection point
+     * (26/7)^(1/6) sigma and decreases again. Truncated potential jumps at the cutoff.
+     */
+    @Override
+    public double getMaxSlope(double r) {
+        final double r2 = r * r;
+        if (r2 >= rcut2) return 0;
+        if (rcut2 < Double.POSITIVE_INFINITY) return Double.POSITIVE_INFINITY;
+
+        return Math.max(slope(r2), slope(Math.max(r2, sigma2 * Math.cbrt(26.0 / 7.0))));
+    }
+
+    private double slope(double r2) {
+        final double sr2 = sigma2 / Math.max(r2, MINIMAL_R2);
+        final double sr6 = sr2 * sr2 * sr2;
+        return epsilon4 * Math.abs(12 * sr6 * sr6 - 6 * sr6) / Math.sqrt(r2);
+    }
+
+    @Override
+    public double sumPotentials(double[] r2, double[] out, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            final double sr2 = sigma2 / Math.max(r2[i], MINIMAL_R2);
+            final double sr6 = sr2 * sr2 * sr2;
+            final double pot = (r2[i] < rcut2) ? epsilon4 * sr6 * (sr6 - 1.0) : 0;
+            out[i] = pot;
+            sum += pot;
+        }
+        return sum;
+    }
+}
@@ -1,13 +1,19 @@
 package com.butlitsky.mk.ensembles;
 
 import com.butlitsky.mk.IEnsemble;
-import com.butlitsky.mk.math.MersenneTwisterFast;
+import com.butlitsky.mk.math.SplitMix64;
+import com.butlitsky.mk.math.UniformBuffer;
+import com.butlitsky.mk.math.Xoshiro256StarStar;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Metropolis algorithm implementation suitable for any ensemble type.
@@ -73,22 +79,32 @@ public abstract class MetropolisEnsemble implements IEnsemble {
     private int currStep;
 
     /**
-     * Hi quality random generator
+     * Bulk generated uniform randoms, the only random source of the chain. Seeded by
+     * {@link CLOptions#MASTER_SEED} and the point folder.
      */
-    private final MersenneTwisterFast rnd;
+    private final UniformBuffer rnd;
+
+    // random state file header, generators states are not interchangeable
+    private static final int XOSHIRO_STATE = 1;
+    private static final int MERSENNE_STATE = 2;
 
     /**
-     * simple random generator (for choosing particle for example, etc.)
+     * Replica exchange group, null – the ensemble runs independently
      */
-    private final ThreadLocalRandom localRnd;
+    private ReplicaExchange exchange;
 
 
     protected MetropolisEnsemble(EOptions options, int frequentInterval, int midInterval, int rareInterval) {
-        rnd = new MersenneTwisterFast();
-        localRnd = ThreadLocalRandom.current();
-
         opt = options;
         myFolder = options.getFolder();
+        final SplitMix64 seed = SplitMix64.forKey(CLOptions.MASTER_SEED, myFolder);
+        // about a sweep of random numbers at once
+        final int bufferSize = Math.min(1 << 16, Math.max(256, 4 * frequentInterval));
+        rnd = new UniformBuffer(CLOptions.MERSENNE_TWISTER ?
+                                        new UniformBuffer.MersenneTwisterGenerator(seed.nextInts(8)) :
+                                        new Xoshiro256StarStar(seed),
+                                bufferSize);
+
         numSteps = options.getNumSteps();
         myTag = options.getT() + "/" + MICRO_FORMAT.format(options.getDensity());
 
@@ -109,12 +125,51 @@ public abstract class MetropolisEnsemble implements IEnsemble {
     }
 
     /**
-     * Java simple randomizer
-     *
+     * Makes the ensemble run synchronously with the other replicas of the group
+     */
+    final void joinExchange(ReplicaExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    /**
      * @return random number in region [0; number)
      */
     protected int nextInt(int number) {
-        return localRnd.nextInt(number);
+        return rnd.nextInt(number);
+    }
+
+    /**
+     * Saves generator state to the point folder, so the recovered chain continues the same
+     * random sequence
+     */
+    protected final void saveRandomState() {
+        final Path path = GibbsConfigurationManager.getPath(myFolder + "/" + RANDOM_STATE_FILE);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeInt(CLOptions.MERSENNE_TWISTER ? MERSENNE_STATE : XOSHIRO_STATE);
+            rnd.writeState(out);
+        } catch (IOException e) {
+            System.out.println("ERROR: failed to save random state for " + myFolder);
+        }
+        if (exchange != null) exchange.saveState(this);
+    }
+
+    /**
+     * Restores generator state saved by {@link #saveRandomState()}, keeps the seeded state if
+     * there is no valid file
+     */
+    protected final void loadRandomState() {
+        final Path path = GibbsConfigurationManager.getPath(myFolder + "/" + RANDOM_STATE_FILE);
+        if (!Files.exists(path)) return;
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != (CLOptions.MERSENNE_TWISTER ? MERSENNE_STATE : XOSHIRO_STATE)) {
+                System.out.println("WARNING: " + myFolder + " random state of other generator ignored");
+                return;
+            }
+            rnd.readState(in);
+        } catch (IOException e) {
+            System.out.println("WARNING: failed to read random state for " + myFolder);
+        }
     }
 
     @Override
@@ -136,6 +191,7 @@ public abstract class MetropolisEnsemble implements IEnsemble {
         if (currStep >= numSteps || finished) {
 //            System.out.print(myFolder + " No run.\t");
             finished = true;
+            if (exchange != null) exchange.leave(this);
             return;
         }
 
@@ -158,18 +214,16 @@ public abstract class MetropolisEnsemble implements IEnsemble {
         currStep = i;
 
         if (!finished) {
+            // exchanges follow steps k * interval - 1, so resumed replicas meet at the same steps
+            int exchangeCountdown = (exchange == null) ? 0 : exchange.getInterval() - i % exchange.getInterval();
+
             while (i < numSteps) {
                 if (finished) {
                     System.out.println("STOP " + myFolder + ", finished=true\t");
                     break;
                 }
 
-                if (play(i)) {
-                    onTrialAccepted();
-                    currStep = i;
-                } else {
-                    onTrialRejected();
-                }
+                step(i);
 
                 if (i % CALC_FREQUENT_INT == 0) {
                     doFrequentCalc(i);
@@ -180,6 +234,10 @@ public abstract class MetropolisEnsemble implements IEnsemble {
                 if (i % CALC_RARE_INT == 0) {
                     doRareCalc();
                 }
+                if (exchange != null && --exchangeCountdown == 0) {
+                    exchange.await(); // configuration may be swapped here
+                    exchangeCountdown = exchange.getInterval();
+                }
 
                 i++;
             }
@@ -187,6 +245,7 @@ public abstract class MetropolisEnsemble implements IEnsemble {
         }
         currStep = i;
         finished = true;
+        if (exchange != null) exchange.leave(this);
 
         saveStateOnStop();
 
@@ -194,6 +253,22 @@ public abstract class MetropolisEnsemble implements IEnsemble {
     }
 
 
+    /**
+     * One Monte-Carlo step: trial move and its acceptance callbacks, no periodic calculations.
+     * Public for the check harnesses, the chain itself is driven by {@link #run()}.
+     *
+     * @return true if the trial move was accepted
+     */
+    public final boolean step(int i) {
+        if (play(i)) {
+            onTrialAccepted();
+            currStep = i;
+            return true;
+        }
+        onTrialRejected();
+        return false;
+    }
+
     /**
      * Main Metropolis method.
      * It should make a trial random change and check the criteria if it should be accepted or not.
@@ -249,7 +324,7 @@ public abstract class MetropolisEnsemble implements IEnsemble {
     }
 
     /**
-     * returns Mersenne Twister random [0; size) double value
+     * returns random [0; size) double value
      */
     final double myRandom(double size) {
         return rnd.nextDouble() * size;
@@ -1,5 +1,6 @@
 package com.butlitsky.mk.ensembles;
 
+import com.butlitsky.mk.math.DoubleRingBuffer;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 import org.apache.commons.math3.util.FastMath;
@@ -10,13 +11,11 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
 
 import static org.apache.commons.math3.util.FastMath.ceil;
-import static org.apache.commons.math3.util.FastMath.exp;
+import static org.apache.commons.math3.util.FastMath.log;
 
 /**
  * Basic class for all the metropolis abstractions. Assuming NVT single box ensemble.
@@ -26,6 +25,15 @@ import static org.apache.commons.math3.util.FastMath.exp;
  */
 public abstract class NVTEnsemble extends MetropolisEnsemble {
 
+    /**
+     * Allowed relative difference between the running energy and a full recompute
+     */
+    private static final double ENERGY_DRIFT_TOLERANCE = 1e-9;
+
+    // smallest fork-join chunks: particles for O(N) sums, rows for O(N^2) passes
+    private static final int MIN_CHUNK_PARTICLES = 1024;
+    private static final int MIN_CHUNK_ROWS = 16;
+
     private final int avgPoints;
 
     private Path myConfigPath;
@@ -57,10 +65,47 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
     protected final double[] Ys;
     protected final double[] Zs;
 
-    // averaging energies values stack
-    private final Deque<Double> energies;
+    // species pair potentials, resolved once in loadState()
+    private IPairPotential ionIon;
+    private IPairPotential ionElectron;
+    private IPairPotential electronElectron;
+
+    // sum of pair potentials of every particle with all the others (in kT)
+    private final double[] particlePotential;
+    // pair potentials of the trial position with every particle, filled by fillTrialPotential()
+    private double[] trialPotential;
+    private double trialPotentialSum;
+
+    // batched pair sums kernel buffers (null if disabled)
+    private final double[] kernelR2;
+    private final double[] kernelOut;
+
+    // fork-join split of pair sums (null if disabled)
+    private final ParallelSums parallel;
+
+    // trial moves evaluated ahead of the chain (null if disabled), see playSpeculative()
+    private final SpeculativeTrial[] speculative;
+    private int nextSpeculative; // queue is empty when equals speculative.length
+
+    // delayed acceptance or early rejection neighbours index (null if disabled), see
+    // playDelayed() and rejectEarly()
+    private final CellList neighbours;
+    private final double shortCut2;
+    private final boolean earlyRejection;
+    // max pair potential slope beyond the neighbours cutoff (in kT/Bohr), set in loadState()
+    private double farSlope;
+    private final int[] cellStamps;
+    private int stamp;
+
+    // averaging energies values window
+    private final DoubleRingBuffer energies;
     private double avgEnergy = 0;
     private double currentEnergy = 0;
+    // true – accepted moves changed the energy, recompute before next record (not incremental)
+    private boolean energyOutdated = false;
+
+    // true – currentEnergy is updated by accepted moves shifts instead of full recompute
+    private boolean incrementalEnergy;
 
 
     protected NVTEnsemble(EOptions options) {
@@ -100,13 +145,53 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
         Ys = new double[numPart];
         Zs = new double[numPart];
 
+        particlePotential = new double[numPart];
+        trialPotential = new double[numPart];
+        kernelR2 = CLOptions.BATCHED_KERNEL ? new double[numPart] : null;
+        kernelOut = CLOptions.BATCHED_KERNEL ? new double[numPart] : null;
+        parallel = ParallelRange.isEnabled() ? new ParallelSums() : null;
+
+        if (CLOptions.SPECULATIVE_TRIALS > 0) {
+            speculative = new SpeculativeTrial[CLOptions.SPECULATIVE_TRIALS];
+            for (int k = 0; k < speculative.length; k++) {
+                speculative[k] = new SpeculativeTrial(numPart, kernelR2 != null);
+            }
+            nextSpeculative = speculative.length;
+        } else {
+            speculative = null;
+        }
+
+        earlyRejection = CLOptions.EARLY_REJECTION_CUTOFF > 0;
+        final double neighboursCutoff = earlyRejection ? CLOptions.EARLY_REJECTION_CUTOFF :
+                CLOptions.DELAYED_CUTOFF;
+        if (neighboursCutoff > 0) {
+            final double cutoff = Math.min(halfBox, neighboursCutoff * avgDistance);
+            neighbours = new CellList(boxSize, cutoff, numPart);
+            shortCut2 = cutoff * cutoff;
+            cellStamps = new int[neighbours.getCells()];
+        } else {
+            neighbours = null;
+            shortCut2 = 0;
+            cellStamps = null;
+        }
+
         // OPTIONS first bit == save longtail
         saveLongTail = ((options.getStrategy() & 1) == 1);
         avgPoints = (CLOptions.NUM_ENERGY_AVG_STEPS < 0) ?
                 getNumSteps() - CLOptions.INITIAL_STEPS : CLOptions.NUM_ENERGY_AVG_STEPS;
         System.out.print(", AVG.=" + avgPoints);
 
-        energies = new ArrayDeque<>(avgPoints);
+        final int stride = getEnergyStride();
+        energies = new DoubleRingBuffer(DoubleRingBuffer.capacityFor(avgPoints, stride), stride);
+    }
+
+    /**
+     * Called from the constructor, subclass fields are not initialized yet
+     *
+     * @return every Nth step energy is recorded for averages
+     */
+    protected int getEnergyStride() {
+        return Math.max(1, CLOptions.NUM_ENERGY_AVG_STRIDE);
     }
 
     /**
@@ -115,6 +200,8 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
      */
     public void loadState() {
         loadFromStateFile();
+        initPairPotentials();
+        initPotentialCache();
         initEnergy();
         applyAdditionalStrategies();
 
@@ -127,12 +214,12 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
      * sets average potential from file or resets it to zero
      */
     private void initEnergy() {
+        incrementalEnergy = isEnergyIncremental();
+        currentEnergy = getCurrentEnergy();
 
         if (avgEnergy == 0) {
-            newEnergyStep();
+            energyStep();
             averageEnergy();
-        } else {
-            currentEnergy = avgEnergy;
         }
     }
 
@@ -172,6 +259,7 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
             if (Files.exists(myConfigPath)) {
                 try {
                     loadArrays(Files.readAllLines(myConfigPath, Charset.forName("UTF-8")));
+                    loadRandomState();
                 } catch (Exception e) {
                     System.out.println("WARNING: failed to read config for " + myFolder);
                     System.out.println(e.getLocalizedMessage());
@@ -227,99 +315,312 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
     }
 
     /**
-     * Record current energy value to averager array
+     * Record current energy value to averager array. Outdated energy is recomputed only if the
+     * value is going to be recorded.
      */
-    private final void newEnergyStep() {
-        currentEnergy = getCurrentEnergy();
-        oldEnergyStep();
+    private final void energyStep() {
+        if (energyOutdated && energies.isNextRecorded()) {
+            currentEnergy = getCurrentEnergy();
+            energyOutdated = false;
+        }
+        energies.offer(currentEnergy);
     }
 
-    private final void oldEnergyStep() {
-        if (energies.size() > avgPoints - 1) energies.pollLast();
-        energies.addFirst(currentEnergy);
+    private final void averageEnergy() {
+        avgEnergy = energies.average();
     }
 
-    private final void averageEnergy() {
-        double enrg = 0.0;
+    /**
+     * Fills per particle potentials cache from scratch
+     */
+    private void initPotentialCache() {
+        if (neighbours != null) neighbours.build(Xs, Ys, Zs, numPart);
 
-        for (Double val : energies) {
-            enrg = enrg + val;
+        if (parallel != null) {
+            parallel.sum(ParallelSums.CACHE_ROWS, 0, numPart, MIN_CHUNK_ROWS);
+        } else {
+            initPotentialCacheRows(0, numPart, kernelR2);
         }
+    }
 
-        avgEnergy = enrg / energies.size();
+    /**
+     * @param r2Buffer batched kernel buffer, null – scalar sums (shared buffer can't be used
+     *                 by concurrent rows)
+     */
+    private void initPotentialCacheRows(int from, int to, double[] r2Buffer) {
+        final int half = numPart / 2;
+        for (int j = from; j < to; j++) {
+            particlePotential[j] =
+                    sumPotentialRange(withIons(j), 0, half, j, Xs[j], Ys[j], Zs[j], r2Buffer)
+                            + sumPotentialRange(withElectrons(j), half, numPart, j,
+                                                Xs[j], Ys[j], Zs[j], r2Buffer);
+        }
+    }
+
+    /**
+     * Compares running energy with the full recompute, reports the drift and resets running value
+     */
+    private void checkEnergyDrift() {
+        if (!incrementalEnergy) return;
+
+        final double exact = getCurrentEnergy();
+        final double drift = currentEnergy - exact;
+
+        if (Math.abs(drift) > ENERGY_DRIFT_TOLERANCE * Math.max(1.0, Math.abs(exact))) {
+            System.out.println("WARNING: " + myFolder + " energy drift " + SHORT_FORMAT.format(drift)
+                                       + " on step " + getCurrStep());
+        }
+        currentEnergy = exact;
+    }
+
+    /**
+     * If true (default) total energy is tracked by {@link #commitEnergyShift(int, double, double,
+     * double)} values, otherwise {@link #getCurrentEnergy()} is called after accepted moves when
+     * the energy value is recorded.
+     */
+    protected boolean isEnergyIncremental() {
+        return true;
+    }
+
+    /**
+     * Called for every accepted move right before particle {@code which} is placed to (x, y, z).
+     * Subclasses with non pairwise {@link #getCurrentEnergy()} must override it (or
+     * {@link #isEnergyIncremental()}).
+     *
+     * @return total energy change of the accepted move
+     */
+    protected double commitEnergyShift(int which, double x, double y, double z) {
+        if (parallel != null) {
+            parallel.setParticle(which, x, y, z);
+            return parallel.sum(ParallelSums.ENERGY_SHIFT, 0, numPart, MIN_CHUNK_PARTICLES);
+        }
+        return energyShiftPart(0, numPart, which, x, y, z);
+    }
+
+    private double energyShiftPart(int from, int to, int which, double x, double y, double z) {
+        final int half = numPart / 2;
+        double shift = 0;
+        if (from < half) {
+            shift += energyShiftRange(withIons(which), from, Math.min(to, half), which, x, y, z);
+        }
+        if (to > half) {
+            shift += energyShiftRange(withElectrons(which), Math.max(from, half), to, which, x, y, z);
+        }
+        return shift;
     }
 
     /**
      * calculates full system potential from scratch, based on current particles configuration
      */
     protected double getCurrentEnergy() {
+        if (parallel != null) {
+            return parallel.sum(ParallelSums.ENERGY_ROWS, 0, numPart, MIN_CHUNK_ROWS);
+        }
+        return energyRows(0, numPart);
+    }
+
+    /**
+     * @return energy of pairs (i, j > i) for i in [from, to)
+     */
+    private double energyRows(int from, int to) {
+        final int half = numPart / 2;
         double newEn = 0;
-        for (int i = 0; i < numPart; i++) {
-            for (int j = i + 1; j < numPart; j++) {
-                newEn = newEn + getEnergy(i, j);
-            }
+
+        for (int i = from; i < Math.min(to, half); i++) {
+            newEn = newEn
+                    + sumEnergyRange(ionIon, i + 1, half, Xs[i], Ys[i], Zs[i])
+                    + sumEnergyRange(ionElectron, half, numPart, Xs[i], Ys[i], Zs[i]);
+        }
+        for (int i = Math.max(from, half); i < to; i++) {
+            newEn = newEn + sumEnergyRange(electronElectron, i + 1, numPart, Xs[i], Ys[i], Zs[i]);
         }
         return newEn;
     }
 
+    // ------------- Species partitioned pair sums --------------------------
+    // First numPart/2 particles are IONS, last numPart/2 are ELECTRONS, so every sum is split
+    // into ions and electrons loops, each calling a single pair potential instance.
+
+    /**
+     * Resolves species pair potentials once, before any energy calculation. Tabulated if
+     * enabled by {@link CLOptions#POTENTIAL_TABLE_CELLS}.
+     */
+    private void initPairPotentials() {
+        final double maxR2 = 3 * halfBox * halfBox; // max minimum image distance
+
+        ionIon = PotentialTable.tabulate(createPairPotential(false, true), maxR2, "i-i");
+        ionElectron = PotentialTable.tabulate(createPairPotential(false, false), maxR2, "i-e");
+        electronElectron = PotentialTable.tabulate(createPairPotential(true, false), maxR2, "e-e");
+
+        if (earlyRejection) {
+            final double cutoff = Math.sqrt(shortCut2);
+            farSlope = Math.max(ionIon.getMaxSlope(cutoff),
+                                Math.max(ionElectron.getMaxSlope(cutoff),
+                                         electronElectron.getMaxSlope(cutoff)));
+        }
+    }
+
     /**
-     * trialX/Y/Z must belong to j particle
+     * Factory method for species pair interactions. Called once from {@link #loadState()}, so
+     * all subclass fields are already initialized.
      *
-     * @return potential between two particles assuming j[trialX, trialY, trialZ] particle
+     * @param ee electron-electron pair
+     * @param ii ion-ion pair (both false – ion-electron pair)
      */
-    private final double getPotential(int i, int j, double trialX, double trialY, double trialZ) {
-        final double r = Math.sqrt(dSquared(trialX - Xs[i], trialY - Ys[i], trialZ - Zs[i]));
+    protected abstract IPairPotential createPairPotential(boolean ee, boolean ii);
 
-        if (i != j) {
-            if (j < (numPart / 2))   // First _num/2 are IONS
-            {
-                if (i < (numPart / 2)) // ION-ION
-                    return getPotentialAsym(r, false, true);
-                else              // ION - electron
-                    return getPotentialAsym(r, false, false);
-            } else                   // Last _num/2 are Electrons
-            {
-                if (i < (numPart / 2)) // Electron - ION
-                    return getPotentialAsym(r, false, false);
-                else              // Electron - Electron
-                    return getPotentialAsym(r, true, false);
-            }
+    /**
+     * @return pair potential of i-th particle with ions
+     */
+    private IPairPotential withIons(int i) {
+        return (i < numPart / 2) ? ionIon : ionElectron;
+    }
+
+    /**
+     * @return pair potential of i-th particle with electrons
+     */
+    private IPairPotential withElectrons(int i) {
+        return (i < numPart / 2) ? ionElectron : electronElectron;
+    }
+
+    private double sumPotentialRange(IPairPotential pair, int from, int to, int skip,
+                                     double x, double y, double z, double[] r2Buffer) {
+        if (skip >= from && skip < to) {
+            return sumPotentialRange(pair, from, skip, x, y, z, r2Buffer)
+                    + sumPotentialRange(pair, skip + 1, to, x, y, z, r2Buffer);
+        }
+        return sumPotentialRange(pair, from, to, x, y, z, r2Buffer);
+    }
+
+    private double sumPotentialRange(IPairPotential pair, int from, int to,
+                                     double x, double y, double z, double[] r2Buffer) {
+        if (r2Buffer != null) {
+            return PairKernels.sumPotentials(pair, Xs, Ys, Zs, from, to, x, y, z,
+                                             boxSize, r2Buffer, kernelOut);
         }
-        return 0;
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum = sum + pair.getPotential(dSquared(x - Xs[i], y - Ys[i], z - Zs[i]));
+        }
+        return sum;
+    }
+
+    private double sumEnergyRange(IPairPotential pair, int from, int to,
+                                  double x, double y, double z) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum = sum + pair.getEnergy(dSquared(x - Xs[i], y - Ys[i], z - Zs[i]));
+        }
+        return sum;
     }
 
     /**
-     * returns current potential between to particles defined by i,j indexes
-     * if i == j returns 0
+     * Fills trialPotential[] for particle {@code which} placed to the trial position
+     *
+     * @return sum of the trial pair potentials
      */
-    private final double getPotential(int i, int j) {
-        return getPotential(i, j, Xs[j], Ys[j], Zs[j]);
+    private double fillTrialPotential() {
+        trialPotential[which] = 0;
+        if (parallel != null) {
+            return parallel.sum(ParallelSums.TRIAL, 0, numPart, MIN_CHUNK_PARTICLES);
+        }
+        return fillTrialPart(0, numPart, which, xTrial, yTrial, zTrial, trialPotential, kernelR2);
     }
 
-    protected abstract double getPotentialAsym(double r, boolean ee, boolean ii);
+    /**
+     * Fills out[from, to) with pair potentials of {@code which} particle placed to (x, y, z)
+     *
+     * @param r2Buffer batched kernel buffer, null – scalar sums
+     */
+    private double fillTrialPart(int from, int to, int which, double x, double y, double z,
+                                 double[] out, double[] r2Buffer) {
+        final int half = numPart / 2;
+        double sum = 0;
+        if (from < half) {
+            sum += fillTrialRange(withIons(which), from, Math.min(to, half), which,
+                                  x, y, z, out, r2Buffer);
+        }
+        if (to > half) {
+            sum += fillTrialRange(withElectrons(which), Math.max(from, half), to, which,
+                                  x, y, z, out, r2Buffer);
+        }
+        return sum;
+    }
 
-    private final double getEnergy(int i, int j) {
-        final double r = Math.sqrt(dSquared(Xs[j] - Xs[i], Ys[j] - Ys[i], Zs[j] - Zs[i]));
+    private double fillTrialRange(IPairPotential pair, int from, int to, int skip,
+                                  double x, double y, double z, double[] out, double[] r2Buffer) {
+        if (skip >= from && skip < to) {
+            return fillTrialRange(pair, from, skip, x, y, z, out, r2Buffer)
+                    + fillTrialRange(pair, skip + 1, to, x, y, z, out, r2Buffer);
+        }
+        return fillTrialRange(pair, from, to, x, y, z, out, r2Buffer);
+    }
 
-        if (i != j) {
-            if (j < (numPart / 2))   // First _num/2 are IONS
-            {
-                if (i < (numPart / 2)) // ION-ION
-                    return getEnergyAsym(r, false, true);
-                else              // ION - electron
-                    return getEnergyAsym(r, false, false);
-            } else                   // Last _num/2 are Electrons
-            {
-                if (i < (numPart / 2)) // Electron - ION
-                    return getEnergyAsym(r, false, false);
-                else              // Electron - Electron
-                    return getEnergyAsym(r, true, false);
-            }
+    private double fillTrialRange(IPairPotential pair, int from, int to,
+                                  double x, double y, double z, double[] out, double[] r2Buffer) {
+        if (r2Buffer != null) {
+            return PairKernels.sumPotentials(pair, Xs, Ys, Zs, from, to, x, y, z,
+                                             boxSize, r2Buffer, out);
+        }
+        final double[] trial = out;
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            final double pot = pair.getPotential(dSquared(x - Xs[i], y - Ys[i], z - Zs[i]));
+            trial[i] = pot;
+            sum = sum + pot;
         }
-        return 0;
+        return sum;
     }
 
-    protected abstract double getEnergyAsym(double r, boolean ee, boolean ii);
+    /**
+     * Adds (trial - current) pair potentials of {@code which} particle to the others' cache
+     */
+    private void updatePotentialCache() {
+        if (parallel != null) {
+            parallel.sum(ParallelSums.CACHE_UPDATE, 0, numPart, MIN_CHUNK_PARTICLES);
+        } else {
+            updateCachePart(0, numPart);
+        }
+    }
+
+    private void updateCachePart(int from, int to) {
+        final int half = numPart / 2;
+        if (from < half) {
+            updateCacheRange(withIons(which), from, Math.min(to, half), which);
+        }
+        if (to > half) {
+            updateCacheRange(withElectrons(which), Math.max(from, half), to, which);
+        }
+    }
+
+    private void updateCacheRange(IPairPotential pair, int from, int to, int skip) {
+        if (skip >= from && skip < to) {
+            updateCacheRange(pair, from, skip, skip);
+            updateCacheRange(pair, skip + 1, to, skip);
+            return;
+        }
+        final double x = Xs[skip], y = Ys[skip], z = Zs[skip];
+        for (int i = from; i < to; i++) {
+            particlePotential[i] += trialPotential[i]
+                    - pair.getPotential(dSquared(x - Xs[i], y - Ys[i], z - Zs[i]));
+        }
+    }
+
+    private double energyShiftRange(IPairPotential pair, int from, int to, int skip,
+                                    double x, double y, double z) {
+        if (skip >= from && skip < to) {
+            return energyShiftRange(pair, from, skip, skip, x, y, z)
+                    + energyShiftRange(pair, skip + 1, to, skip, x, y, z);
+        }
+        final double oldX = Xs[skip], oldY = Ys[skip], oldZ = Zs[skip];
+        double shift = 0;
+        for (int i = from; i < to; i++) {
+            shift = shift
+                    + pair.getEnergy(dSquared(x - Xs[i], y - Ys[i], z - Zs[i]))
+                    - pair.getEnergy(dSquared(oldX - Xs[i], oldY - Ys[i], oldZ - Zs[i]));
+        }
+        return shift;
+    }
 
     private final double dSquared(double dx, double dy, double dz) {
         dx = fit2box(dx);
@@ -420,6 +721,7 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
             e.printStackTrace();
             System.out.println("ERROR: failed to save state for " + myFolder);
         }
+        saveRandomState();
     }
 
     private void writeStateTo(BufferedWriter writer) throws IOException {
@@ -450,7 +752,7 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
 
     }
 
-    private final void fillCorrAray(int i, int j, int corrIndex) {
+    private final void fillCorrAray(int i, int j, int corrIndex, double[][] corr) {
         if (i != j) {
             // get the index of a radius in array
             final int idx =
@@ -458,34 +760,124 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
                                               Zs[i] - Zs[j])) / corrDr);
             // increment ION-ION array
             if (idx < CORR_LENGTH)
-                corrArray[corrIndex][idx]++;
+                corr[corrIndex][idx]++;
             else
                 System.out.println("WARNING: " + myFolder + " correlation index out of bounds!");
         }
     }
 
     private final void calcCorrelation() {
+        if (parallel != null) {
+            parallel.sum(ParallelSums.CORRELATION, 0, numPart, MIN_CHUNK_ROWS);
+            parallel.mergeCorrelation(corrArray);
+        } else {
+            correlationRows(0, numPart, corrArray);
+        }
+        // increment the number of correlation array calculatings
+        corrAverager++;
+    }
+
+    /**
+     * Adds i-th particles pairs distances for i in [from, to) to the corr histograms
+     */
+    private void correlationRows(int from, int to, double[][] corr) {
+        final int half = numPart / 2;
         // get the simple corrArray for ION-ION
-        for (int i = 0; i < (numPart / 2); i++) {
-            for (int j = 0; j < (numPart / 2); j++) {
-                fillCorrAray(i, j, 0);
+        for (int i = from; i < Math.min(to, half); i++) {
+            for (int j = 0; j < half; j++) {
+                fillCorrAray(i, j, 0, corr);
             }
         }
-        // get the simple corrArray for ELECTRON-ELECTRON
-        for (int i = (numPart / 2); i < numPart; i++) {
-            for (int j = (numPart / 2); j < numPart; j++) {
-                fillCorrAray(i, j, 2);
+        for (int i = Math.max(from, half); i < to; i++) {
+            // get the simple corrArray for ELECTRON-ELECTRON
+            for (int j = half; j < numPart; j++) {
+                fillCorrAray(i, j, 2, corr);
+            }
+            // get the simple corrArray for ELECTRON-ION
+            for (int j = 0; j < half; j++) {
+                fillCorrAray(i, j, 1, corr);
             }
         }
+    }
 
-        // get the simple corrArray for ELECTRON-ION
-        for (int i = (numPart / 2); i < numPart; i++) {
-            for (int j = 0; j < (numPart / 2); j++) {
-                fillCorrAray(i, j, 1);
+    /**
+     * Fork-join split of the pair sums, pass type is selected before every sum
+     */
+    private final class ParallelSums extends ParallelRange {
+        static final int TRIAL = 0;
+        static final int CACHE_UPDATE = 1;
+        static final int ENERGY_SHIFT = 2;
+        static final int ENERGY_ROWS = 3;
+        static final int CACHE_ROWS = 4;
+        static final int CORRELATION = 5;
+        static final int SPECULATIVE = 6;
+
+        private int pass;
+
+        // energy shift particle
+        private int shiftWhich;
+        private double shiftX, shiftY, shiftZ;
+
+        // per chunk correlation histograms, created on first use
+        private double[][][] corrChunks;
+
+        double sum(int pass, int from, int to, int minChunk) {
+            this.pass = pass;
+            if (pass == CORRELATION && corrChunks == null) {
+                corrChunks = new double[getMaxChunks()][3][CORR_LENGTH];
+            }
+            return sum(from, to, minChunk);
+        }
+
+        void setParticle(int which, double x, double y, double z) {
+            shiftWhich = which;
+            shiftX = x;
+            shiftY = y;
+            shiftZ = z;
+        }
+
+        /**
+         * Adds per chunk histograms to the target in chunk order and clears them
+         */
+        void mergeCorrelation(double[][] corr) {
+            for (double[][] chunk : corrChunks) {
+                for (int k = 0; k < 3; k++) {
+                    for (int idx = 0; idx < CORR_LENGTH; idx++) {
+                        corr[k][idx] += chunk[k][idx];
+                        chunk[k][idx] = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected double compute(int chunk, int from, int to) {
+            switch (pass) {
+                case TRIAL:
+                    return fillTrialPart(from, to, which, xTrial, yTrial, zTrial,
+                                         trialPotential, kernelR2);
+                case CACHE_UPDATE:
+                    updateCachePart(from, to);
+                    return 0;
+                case ENERGY_SHIFT:
+                    return energyShiftPart(from, to, shiftWhich, shiftX, shiftY, shiftZ);
+                case ENERGY_ROWS:
+                    return energyRows(from, to);
+                case CACHE_ROWS:
+                    initPotentialCacheRows(from, to, null);
+                    return 0;
+                case CORRELATION:
+                    correlationRows(from, to, corrChunks[chunk]);
+                    return 0;
+                case SPECULATIVE:
+                    for (int k = from; k < to; k++) {
+                        evaluateTrial(speculative[k]);
+                    }
+                    return 0;
+                default:
+                    throw new IllegalStateException("unknown pass " + pass);
             }
         }
-        // increment the number of correlation array calculatings
-        corrAverager++;
     }
 
     /**
@@ -494,39 +886,302 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
      * @param step
      */
     protected final boolean play(int step) {
-        // move random particle
-        final double deltaE = moveParticle();
-        // transition probability checking
-//        System.out.println("deltaE/exp(): " + deltaE + " / " + exp(-deltaE));
-        // potential increased
-        if (deltaE > 0) {
-            // compare the transition probability with random
-            // All energies are in kT
-            if (exp(-deltaE) >= myRandom(1.00000001)) {
-                acceptTrial();
-                return true;
+        if (speculative != null) return playSpeculative();
+
+        // move random particle, acceptance threshold is drawn before the sums
+        drawTrial();
+        final double threshold = acceptanceThreshold(myRandom(1.00000001));
+
+        if (neighbours != null && !earlyRejection) return playDelayed(threshold);
+        if (earlyRejection && rejectEarly(threshold)) return false;
+
+        // Calculating the potential shift, old Energy is cached
+        trialPotentialSum = fillTrialPotential();
+
+        // All energies are in kT
+        if (trialPotentialSum - particlePotential[which] > threshold) return false;
+
+        acceptTrial();
+        return true;
+    }
+
+    /**
+     * Metropolis exp(-deltaE) >= u as deltaE <= threshold (no exp per trial), decreased
+     * potential is always accepted
+     */
+    private static double acceptanceThreshold(double u) {
+        return (u >= 1) ? 0 : -log(u);
+    }
+
+    // ------------- Early rejection --------------------------
+    // Pair potential shifts of the particles in the neighbour cells of the old and new positions
+    // are summed first. All the others are beyond the cutoff from both positions and their
+    // distances change by the displacement at most, so every their shift is within
+    // farSlope * (displacement). farSlope is the analytic slope bound of the pair potentials
+    // beyond the cutoff (exact potentials only, tables have no strict error bound). The move is rejected without the full sum if
+    // even the lowest total shift is above the threshold.
+
+    private boolean rejectEarly(double threshold) {
+        final double oldX = Xs[which], oldY = Ys[which], oldZ = Zs[which];
+        final double displacement = Math.sqrt(dSquared(xTrial - oldX, yTrial - oldY, zTrial - oldZ));
+
+        stamp++;
+        int near = 0;
+        double shift = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            final int center = (pass == 0) ? neighbours.cellOf(xTrial, yTrial, zTrial) :
+                    neighbours.cellOf(oldX, oldY, oldZ);
+
+            for (int cell : neighbours.getNeighbours(center)) {
+                if (cellStamps[cell] == stamp) continue;
+                cellStamps[cell] = stamp;
+
+                for (int j = neighbours.getFirst(cell); j >= 0; j = neighbours.getNext(j)) {
+                    if (j == which) continue;
+
+                    final IPairPotential pair = (j < numPart / 2) ? withIons(which) : withElectrons(which);
+                    shift += pair.getPotential(dSquared(xTrial - Xs[j], yTrial - Ys[j], zTrial - Zs[j]))
+                            - pair.getPotential(dSquared(oldX - Xs[j], oldY - Ys[j], oldZ - Zs[j]));
+                    near++;
+                }
+            }
+        }
+
+        return shift - (numPart - 1 - near) * farSlope * displacement > threshold;
+    }
+
+    // ------------- Delayed acceptance --------------------------
+    // Stage one accepts with min(1, exp(-dU_short)), where dU_short is the moved particle shift
+    // of pair potentials within the cutoff (cells index, no full sum). Only moves passed are
+    // summed fully and accepted with min(1, exp(-(dU - dU_short))). dU_short is a difference of
+    // a configuration function, so the product satisfies detailed balance with exp(-U).
+
+    /**
+     * @param threshold stage one acceptance threshold
+     */
+    private boolean playDelayed(double threshold) {
+        final double shortDelta = shortPotential(which, xTrial, yTrial, zTrial)
+                - shortPotential(which, Xs[which], Ys[which], Zs[which]);
+        if (shortDelta > threshold) return false;
+
+        final double restThreshold = acceptanceThreshold(myRandom(1.00000001));
+        trialPotentialSum = fillTrialPotential();
+        if (trialPotentialSum - particlePotential[which] - shortDelta > restThreshold) return false;
+
+        acceptTrial();
+        return true;
+    }
+
+    /**
+     * @return sum of pair potentials of {@code which} particle placed to (x, y, z) with the
+     * others within the short range cutoff
+     */
+    private double shortPotential(int which, double x, double y, double z) {
+        final int half = numPart / 2;
+        double sum = 0;
+
+        for (int cell : neighbours.getNeighbours(neighbours.cellOf(x, y, z))) {
+            for (int j = neighbours.getFirst(cell); j >= 0; j = neighbours.getNext(j)) {
+                if (j == which) continue;
+
+                final double r2 = dSquared(x - Xs[j], y - Ys[j], z - Zs[j]);
+                if (r2 < shortCut2) {
+                    sum += ((j < half) ? withIons(which) : withElectrons(which)).getPotential(r2);
+                }
+            }
+        }
+        return sum;
+    }
+
+    // ------------- Replica exchange --------------------------
+
+    /**
+     * @return total potential of the current configuration (in this ensemble kT)
+     */
+    final double getTotalPotential() {
+        double sum = 0;
+        for (int i = 0; i < numPart; i++) {
+            sum += particlePotential[i];
+        }
+        return sum / 2;
+    }
+
+    /**
+     * @return total potential of the other replica configuration evaluated with this ensemble
+     * pair potentials (in this ensemble kT). Replicas must have the same particles number and
+     * box size.
+     */
+    final double getTotalPotentialOf(NVTEnsemble other) {
+        final int half = numPart / 2;
+        final double[] xs = other.Xs, ys = other.Ys, zs = other.Zs;
+        double sum = 0;
+
+        for (int i = 0; i < numPart; i++) {
+            final double x = xs[i], y = ys[i], z = zs[i];
+
+            if (i < half) {
+                for (int j = i + 1; j < half; j++) {
+                    sum += ionIon.getPotential(dSquared(x - xs[j], y - ys[j], z - zs[j]));
+                }
+                for (int j = half; j < numPart; j++) {
+                    sum += ionElectron.getPotential(dSquared(x - xs[j], y - ys[j], z - zs[j]));
+                }
+            } else {
+                for (int j = i + 1; j < numPart; j++) {
+                    sum += electronElectron.getPotential(dSquared(x - xs[j], y - ys[j], z - zs[j]));
+                }
             }
-            // potential decreased, accept configuration
+        }
+        return sum;
+    }
+
+    /**
+     * Swaps particles configurations with the other replica and rebuilds both states
+     */
+    final void exchangeConfiguration(NVTEnsemble other) {
+        swapContent(Xs, other.Xs);
+        swapContent(Ys, other.Ys);
+        swapContent(Zs, other.Zs);
+
+        onConfigurationReplaced();
+        other.onConfigurationReplaced();
+    }
+
+    private static void swapContent(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i++) {
+            final double tmp = a[i];
+            a[i] = b[i];
+            b[i] = tmp;
+        }
+    }
+
+    private void onConfigurationReplaced() {
+        initPotentialCache();
+        currentEnergy = getCurrentEnergy();
+        energyOutdated = false;
+
+        if (speculative != null) nextSpeculative = speculative.length; // drop queued trials
+    }
+
+    // ------------- Speculative trials --------------------------
+    // Next K moves (displacement, particle and acceptance random) are drawn ahead and evaluated
+    // concurrently against the current state. Moves are then decided in order exactly as play()
+    // does, every accepted move corrects the queued trials sums by its single pair term, trials of
+    // the same particle are re-evaluated from its new position. So the chain is the same as
+    // sequential one with the same random numbers.
+
+    private static final class SpeculativeTrial {
+        int which;
+        double dx, dy, dz; // displacement
+        double x, y, z;    // trial position
+        double u;          // acceptance random
+        double sum;        // sum of pair potentials at trial position
+        double[] potentials;
+        final double[] r2;
+        boolean stale;     // particle moved since evaluation
+
+        SpeculativeTrial(int numPart, boolean batched) {
+            potentials = new double[numPart];
+            r2 = batched ? new double[numPart] : null;
+        }
+    }
+
+    private boolean playSpeculative() {
+        if (nextSpeculative == speculative.length) prepareSpeculativeTrials();
+
+        final SpeculativeTrial trial = speculative[nextSpeculative++];
+        if (trial.stale) evaluateTrial(trial);
+
+        final double deltaE = trial.sum - particlePotential[trial.which];
+        // same criteria as play()
+        if (deltaE > acceptanceThreshold(trial.u)) return false;
+
+        which = trial.which;
+        xTrial = trial.x;
+        yTrial = trial.y;
+        zTrial = trial.z;
+        trialPotentialSum = trial.sum;
+
+        final double[] swap = trialPotential;
+        trialPotential = trial.potentials;
+        trial.potentials = swap;
+
+        acceptTrial();
+        correctSpeculativeTrials();
+        return true;
+    }
+
+    private void prepareSpeculativeTrials() {
+        for (SpeculativeTrial trial : speculative) {
+            // same random numbers order as drawTrial() and play()
+            trial.dx = myRandom() * maxDelta;
+            trial.dy = myRandom() * maxDelta;
+            trial.dz = myRandom() * maxDelta;
+            trial.which = nextInt(numPart);
+            trial.u = myRandom(1.00000001);
+        }
+
+        if (parallel != null) {
+            parallel.sum(ParallelSums.SPECULATIVE, 0, speculative.length, 1);
         } else {
-            acceptTrial();
-            return true;
+            for (SpeculativeTrial trial : speculative) {
+                evaluateTrial(trial);
+            }
         }
+        nextSpeculative = 0;
+    }
 
-        return false;
+    /**
+     * Places trial particle relative to its current position and sums its pair potentials
+     */
+    private void evaluateTrial(SpeculativeTrial trial) {
+        final int w = trial.which;
+        trial.x = correctPosition(Xs[w] + trial.dx);
+        trial.y = correctPosition(Ys[w] + trial.dy);
+        trial.z = correctPosition(Zs[w] + trial.dz);
+
+        trial.potentials[w] = 0;
+        trial.sum = fillTrialPart(0, numPart, w, trial.x, trial.y, trial.z,
+                                  trial.potentials, trial.r2);
+        trial.stale = false;
+    }
+
+    /**
+     * Replaces the just moved particle pair term in the queued trials
+     */
+    private void correctSpeculativeTrials() {
+        final int moved = which;
+        final double x = Xs[moved], y = Ys[moved], z = Zs[moved];
+
+        for (int k = nextSpeculative; k < speculative.length; k++) {
+            final SpeculativeTrial trial = speculative[k];
+            if (trial.which == moved) {
+                trial.stale = true;
+            } else if (!trial.stale) {
+                final IPairPotential pair = (moved < numPart / 2) ?
+                        withIons(trial.which) : withElectrons(trial.which);
+                final double pot = pair.getPotential(dSquared(trial.x - x, trial.y - y, trial.z - z));
+
+                trial.sum += pot - trial.potentials[moved];
+                trial.potentials[moved] = pot;
+            }
+        }
     }
 
     @Override
     protected void onTrialRejected() {
-        oldEnergyStep();
+        energyStep();
     }
 
     @Override
     protected void onTrialAccepted() {
-        newEnergyStep();
+        energyStep(); // energy already shifted or marked outdated in acceptTrial()
     }
 
     @Override
     protected void doRareCalc() {
+        checkEnergyDrift();
+        initPotentialCache(); // drop accumulated rounding errors
         averageEnergy();
         saveConfiguration();
         saveCorrelation();
@@ -544,15 +1199,27 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
     }
 
     private final void acceptTrial() {
+        // pair potentials of the others change by (new - old) pair term with moved particle
+        updatePotentialCache();
+        particlePotential[which] = trialPotentialSum;
+
+        if (incrementalEnergy) {
+            currentEnergy += commitEnergyShift(which, xTrial, yTrial, zTrial);
+        } else {
+            energyOutdated = true;
+        }
+
+        if (neighbours != null) neighbours.move(which, xTrial, yTrial, zTrial);
+
         Xs[which] = xTrial;
         Ys[which] = yTrial;
         Zs[which] = zTrial;
     }
 
     /**
-     * returns trial potential shift for moved particle
+     * Draws random particle and its trial position
      */
-    private final double moveParticle() {
+    private void drawTrial() {
         final double x = myRandom() * maxDelta;
         final double y = myRandom() * maxDelta;
         final double z = myRandom() * maxDelta;
@@ -563,20 +1230,6 @@ public abstract class NVTEnsemble extends MetropolisEnsemble {
         xTrial = correctPosition(Xs[which] + x);
         yTrial = correctPosition(Ys[which] + y);
         zTrial = correctPosition(Zs[which] + z);
-
-        // Calculating the potential shift
-        double oldE = 0, newE = 0;
-
-        // firstly, old Energy
-        for (int i = 0; i < numPart; i++) {
-            oldE = oldE + getPotential(i, which);
-        }
-
-        // then, new Energy
-        for (int i = 0; i < numPart; i++) {
-            newE = newE + getPotential(i, which, xTrial, yTrial, zTrial);
-        }
-        return newE - oldE;
     }
 
     /**
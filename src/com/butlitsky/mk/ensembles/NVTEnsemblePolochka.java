@@ -47,35 +47,33 @@ public class NVTEnsemblePolochka extends NVTEnsemble {
     }
 
 
-    @Override
     /**
-     * used to introduce not symmetric i-i & e-e potentials
-     *
+     * Same single potential class for all species pairs, so pair sums stay monomorphic.
+     * <p/>
+     * Barker approx. for e-e was:
+     * getPotential(r, false) * (1 - exp(-8.35E-4 * r * pow(T, 0.625)))
      */
-    protected double getPotentialAsym(double r, boolean ee, boolean ii) {
-//  Barker approx.
-//        if (ee)
-//            return getPotential(r, false) * (1 - exp(-8.35E-4 * r * pow(T, 0.625)));
-//
-//        if (ii)
+    @Override
+    protected IPairPotential createPairPotential(boolean ee, boolean ii) {
         if (ee || ii)
-            return getPotential(r, false);
+            return CoreCoulombPotential.repulsion(T, 1);
         else
-            return getPotential(r, true);
+            return CoreCoulombPotential.polochka(T, myEpsilon);
     }
 
+    /**
+     * @return the largest core radius of {@link #createPairPotential} potentials (in Bohrs),
+     * beyond it every pair is pure Coulomb
+     */
+    protected final double getCoreRadius() {
+        return Math.max(1, SCALE_FACTOR / (T * myEpsilon));
+    }
 
-    protected final double getEnergyAsym(double r, boolean ee, boolean ii) {
-// Barker approx.
-//        if (ee)
-//            return getPotential(r, false)
-//                    * (1 - exp(-8.35E-4 * r * pow(T, 0.625)) * (1 - r * (8.35E-4) * pow(T, 0.625) * 0.625));
-//
-//        if (ii)
-        if (ee || ii)
-            return getEnergy(r, false);
-        else
-            return getEnergy(r, true);
+    /**
+     * @return signed Coulomb factor of the species pair (in kT * Bohr)
+     */
+    protected final double getCoulomb(boolean ee, boolean ii) {
+        return (ee || ii) ? SCALE_FACTOR / T : -SCALE_FACTOR / T;
     }
 
 
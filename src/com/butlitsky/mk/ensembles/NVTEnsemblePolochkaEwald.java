@@ -3,7 +3,14 @@ package com.butlitsky.mk.ensembles;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 
-import static org.apache.commons.math3.special.Erf.erfc;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.apache.commons.math3.util.FastMath.*;
 
 /**
@@ -15,45 +22,375 @@ import static org.apache.commons.math3.util.FastMath.*;
  * <p/>
  * <a href="http://www.google.ru/url?sa=t&rct=j&q=&esrc=s&source=web&cd=1&cad=rja&ved=0CC0QFjAA&url=http%3A%2F%2Fwww.mmk.su.se%2Fdocuments%2Fpublications%2Fthesis_fredrik.pdf&ei=4UQsUsKRKeik4ATX_4CYBg&usg=AFQjCNHfS25g4lwiSOrjjcqHcQJMvST7GQ&sig2=dQn4yb3NGhebXCn_QAjWhQ&bvm=bv.51773540,d.bGE"
  * >link</a>
+ * <p/>
+ * Energy is tracked incrementally: charge structure factors rho(k) over the precomputed half
+ * space k-vectors table and the dipole moment are cached and shifted by the moved particle
+ * only (O(K) with per axis exp(i k x) recurrence), real space shift is the moved particle
+ * screened pair energies within Rcut.
+ * <p/>
+ * Real space pairs come from the linked cells index, minimum images only if Rcut <= L/2. Only
+ * the Coulomb part of the polochka is screened (see {@link ScreenedPotential}), so the energy
+ * does not depend on alpha. Rcut, alpha and Ncut are tuned: the cheapest single move by the
+ * cost model among candidates meeting the delta accuracy by Kolafa-Perram error estimates.
+ * Tuned parameters are saved to the point folder and restored on resume. Explicit Ncut
+ * keeps alpha = Pi Ncut / (L sqrt(-ln(delta))) and Rcut = sqrt(-ln(delta)) / alpha, periodic
+ * images are summed if Rcut > L/2.
  */
 public class NVTEnsemblePolochkaEwald extends NVTEnsemblePolochka {
 
-    private static boolean notPrinted = true;
+    // tuner candidate cutoffs are L / cells per side, the largest for a cells index size
+    private static final int TUNE_MAX_CELLS = 10;
+    private static final int TUNE_MAX_NCUT = 64;
+    // single move cost model weights in k-vector updates (fitted to move timings): every
+    // visited neighbour and every screened kernel evaluation within Rcut
+    private static final double VISITED_PAIR_COST = 1;
+    private static final double SCREENED_PAIR_COST = 2.5;
 
     private final double myDelta;
-    private final int myNcutoff;
-    private final double myAlpha;
-    private final double myRcut;
-    private final double myUself;
-
-
+    private int myNcutoff;
+    private double myAlpha;
+    private double myRcut;
+    private double myUself;
+    // image shells per axis within Rcut, 0 if minimum images only
+    private int myImages;
+    // constant screened energy of the particles with their own images
+    private double myUimages;
+    private boolean tuned;
+
+    // real space screened pair energies (tabulated if enabled)
+    private IPairPotential realIonIon;
+    private IPairPotential realIonElectron;
+    private IPairPotential realElectronElectron;
+
+    // real space neighbours index, updated on accepted moves
+    private CellList cells;
+
+    // half space k-vectors table: per axis exponent indexes (n + Ncut) and energy coefficients
+    // (both +k and -k, all prefactors included, in kT)
+    private int[] kx;
+    private int[] ky;
+    private int[] kz;
+    private double[] kCoeff;
+
+    // cached structure factor rho(k) = sum(charge * exp(i k r)) in electron charges
+    private double[] rhoRe;
+    private double[] rhoIm;
+
+    // per axis exp(i 2Pi n x / L) for n in [-Ncut, Ncut]: [axis][n + Ncut]
+    private double[][] expRe;
+    private double[][] expIm;
+    private double[][] trialExpRe;
+    private double[][] trialExpIm;
+
+    // cached dipole moment sum(charge * r) (in Bohrs)
+    private double dipoleX, dipoleY, dipoleZ;
+
+
+    /**
+     * Alpha, Rcut and Ncut are tuned on the first energy calculation (particles are placed),
+     * unless Ncut is given explicitly.
+     */
     protected NVTEnsemblePolochkaEwald(EOptions options) {
         super(options);
         myDelta = CLOptions.EWALD_DELTA;
-        myNcutoff = CLOptions.EWALD_N_CUTOFF;
-        myAlpha = PI * myNcutoff / (getBoxSize() * Math.sqrt(-log(myDelta)));
 
-        myRcut = PI * myNcutoff / (myAlpha * myAlpha * getBoxSize()); // getBoxSize();
+        if (CLOptions.EWALD_N_CUTOFF > 0) {
+            final int ncut = CLOptions.EWALD_N_CUTOFF;
+            final double alpha = PI * ncut / (getBoxSize() * sqrt(-log(myDelta)));
+            configure(sqrt(-log(myDelta)) / alpha, alpha, ncut, true);
+            tuned = true;
+            printStat("");
+        }
+    }
+
+    private void printStat(String prefix) {
+        System.out.print(prefix + "EWALD delta = " + myDelta + ", Ncut = " + myNcutoff);
+        System.out.print(" EWALD alphaL <= " + myAlpha * getBoxSize() + " EWALD alpha <= " + myAlpha);
+        System.out.print(", Rcut = " + myRcut / getBoxSize() + ", cells = " + cells.getCellsPerSide() + "^3");
+        System.out.println(", est.err = " + SHORT_FORMAT.format(realError(myAlpha, myRcut)
+                                                                      + recipError(myAlpha, myNcutoff))
+                                   + ", move cost = " + SHORT_FORMAT.format(moveCost(myRcut, myNcutoff)));
+    }
+
+    /**
+     * Rebuilds kernels, cells index and k-vectors table for the given parameters, caches are
+     * to be refilled with {@link #getCurrentEnergy()}. Rcut is extended to the core radius.
+     *
+     * @param tables print tabulated kernels stats
+     */
+    private void configure(double rcut, double alpha, int ncut, boolean tables) {
+        myRcut = max(rcut, getCoreRadius());
+        myAlpha = alpha;
+        myNcutoff = ncut;
         myUself = Uself();
+        myImages = (myRcut <= getBoxSize() / 2) ? 0 : (int) ceil(myRcut / getBoxSize() - 0.5);
+
+        realIonIon = screened(false, true, tables ? "re i-i" : null);
+        realIonElectron = screened(false, false, tables ? "re i-e" : null);
+        realElectronElectron = screened(true, false, tables ? "re e-e" : null);
+        myUimages = Uimages();
+
+        cells = new CellList(getBoxSize(), myRcut, getNumPart());
+
+        final int kvectors = fillKVectors(null, null, null, null);
+        kx = new int[kvectors];
+        ky = new int[kvectors];
+        kz = new int[kvectors];
+        kCoeff = new double[kvectors];
+        fillKVectors(kx, ky, kz, kCoeff);
+        rhoRe = new double[kvectors];
+        rhoIm = new double[kvectors];
+
+        expRe = new double[3][2 * myNcutoff + 1];
+        expIm = new double[3][2 * myNcutoff + 1];
+        trialExpRe = new double[3][2 * myNcutoff + 1];
+        trialExpIm = new double[3][2 * myNcutoff + 1];
+    }
+
+    private IPairPotential screened(boolean ee, boolean ii, String tag) {
+        final double rcut2 = myRcut * myRcut;
+        return PotentialTable.tabulate(new ScreenedPotential(createPairPotential(ee, ii),
+                                                             getCoulomb(ee, ii), myAlpha, rcut2), rcut2, tag);
+    }
+
+    // ------------------- parameters tuning --------------------------------
+
+    /**
+     * Kolafa-Perram RMS real space energy error estimate (in kT)
+     */
+    private double realError(double alpha, double rcut) {
+        final double L = getBoxSize();
+        final double ar = alpha * rcut;
+        return SCALE_FACTOR / T * getNumPart() * sqrt(rcut / (2 * L * L * L)) * exp(-ar * ar) / (ar * ar);
+    }
 
-        printStat(myDelta, myNcutoff, myAlpha, myAlpha * getBoxSize(), myRcut / getBoxSize());
+    /**
+     * Kolafa-Perram RMS reciprocal space energy error estimate (in kT), k-vectors n^2 < Ncut^2
+     */
+    private double recipError(double alpha, int ncut) {
+        final int kmax = ncut - 1;
+        final double x = PI * kmax / (alpha * getBoxSize());
+        return SCALE_FACTOR / T * getNumPart() * alpha / (PI * PI) * pow(kmax, -1.5) * exp(-x * x);
     }
 
-    private static void printStat(double delta, int ncutoff, double alpha, double alphaL, double rcut) {
-        if (notPrinted) {
-            notPrinted = false;
-            System.out.print("EWALD delta = " + delta + ", Ncut = " + ncutoff);
-            System.out.print(" EWALD alphaL <= " + alphaL + " EWALD alpha <= " + alpha);
-            System.out.println("Rcut = " + rcut);
+    /**
+     * Target total error (in kT): delta of the Coulomb energy at average distance per particle
+     */
+    private double targetError() {
+        final double avgDistance = getBoxSize() / cbrt(getNumPart());
+        return myDelta * getNumPart() * SCALE_FACTOR / (T * avgDistance);
+    }
+
+    /**
+     * Minimal alpha with real space error within the limit, bisection of alpha * Rcut, or 0 if
+     * the limit is not reached with alpha * Rcut up to 10
+     */
+    private double tuneAlpha(double rcut, double limit) {
+        double lo = 0.5, hi = 10;
+        for (int i = 0; i < 60; i++) {
+            final double mid = (lo + hi) / 2;
+            if (realError(mid / rcut, rcut) > limit) lo = mid;
+            else hi = mid;
+        }
+        return (realError(hi / rcut, rcut) <= limit) ? hi / rcut : 0;
+    }
+
+    /**
+     * Alpha with equal real and reciprocal space errors, i.e. about the minimal total error for
+     * the Rcut and Ncut, bisection of alpha * Rcut
+     */
+    private double balanceAlpha(double rcut, int ncut) {
+        double lo = 0.5, hi = 10;
+        for (int i = 0; i < 60; i++) {
+            final double mid = (lo + hi) / 2;
+            if (realError(mid / rcut, rcut) > recipError(mid / rcut, ncut)) lo = mid;
+            else hi = mid;
+        }
+        return hi / rcut;
+    }
+
+    /**
+     * Minimal Ncut with reciprocal error within the limit, or 0 if above the table size limit
+     */
+    private int tuneNcut(double alpha, double limit) {
+        for (int ncut = 2; ncut <= TUNE_MAX_NCUT; ncut++) {
+            if (recipError(alpha, ncut) <= limit) return ncut;
         }
+        return 0;
+    }
+
+    /**
+     * For every candidate Rcut takes minimal alpha and Ncut meeting the target error (half to
+     * each space) and keeps the cheapest by {@link #moveCost}. Depends on the point options
+     * only, so every run of the point gets the same parameters. If no candidate meets the
+     * target, warns and takes the most accurate one with the largest k-vectors table.
+     */
+    private void tune() {
+        final double target = targetError();
+        double bestRcut = 0, bestAlpha = 0, bestCost = Double.MAX_VALUE;
+        int bestNcut = 0;
+
+        for (int perSide = 2; perSide <= TUNE_MAX_CELLS; perSide++) {
+            final double rcut = getBoxSize() / (perSide + 1e-9);
+            final double alpha = tuneAlpha(rcut, target / 2);
+            if (alpha == 0) continue;
+            final int ncut = tuneNcut(alpha, target / 2);
+            if (ncut == 0) continue;
+
+            final double cost = moveCost(max(rcut, getCoreRadius()), ncut);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestRcut = rcut;
+                bestAlpha = alpha;
+                bestNcut = ncut;
+            }
+        }
+
+        if (bestNcut == 0) {
+            double bestError = Double.MAX_VALUE;
+            for (int perSide = 2; perSide <= TUNE_MAX_CELLS; perSide++) {
+                final double rcut = getBoxSize() / (perSide + 1e-9);
+                final double alpha = balanceAlpha(rcut, TUNE_MAX_NCUT);
+                final double error = realError(alpha, rcut) + recipError(alpha, TUNE_MAX_NCUT);
+                if (error < bestError) {
+                    bestError = error;
+                    bestRcut = rcut;
+                    bestAlpha = alpha;
+                }
+            }
+            bestNcut = TUNE_MAX_NCUT;
+            System.out.println("WARNING: " + myFolder + " Ewald target error " + SHORT_FORMAT.format(target)
+                                       + " kT is not reachable, the most accurate parameters are used");
+        }
+
+        configure(bestRcut, bestAlpha, bestNcut, true);
+        printStat(myFolder + ": tuned ");
+    }
+
+    /**
+     * Single particle move cost (in k-vector updates): both positions visit the neighbour
+     * cells and evaluate the screened kernel within Rcut, every k-vector is updated once
+     */
+    private double moveCost(double rcut, int ncut) {
+        final int perSide = CellList.cellsPerSide(getBoxSize(), rcut);
+        final double cells = perSide * perSide * perSide;
+        final double visited = 2 * getNumPart() * min(27, cells) / cells;
+        final double screened = 2 * getNumPart() * 4 * PI / 3 * pow(min(rcut / getBoxSize(), 1), 3);
+
+        int kvectors = 0; // half space of 0 < n^2 < Ncut^2
+        for (int nx = -ncut; nx <= ncut; nx++) {
+            for (int ny = -ncut; ny <= ncut; ny++) {
+                for (int nz = -ncut; nz <= ncut; nz++) {
+                    final int n2 = nx * nx + ny * ny + nz * nz;
+                    if (n2 > 0 && n2 < ncut * ncut) kvectors++;
+                }
+            }
+        }
+        return VISITED_PAIR_COST * visited + SCREENED_PAIR_COST * screened + kvectors / 2;
+    }
+
+    /**
+     * Restores parameters saved by {@link #saveParameters()}, so the resumed point goes on with
+     * the same energy function
+     *
+     * @return false if there are no parameters of the same delta to restore
+     */
+    private boolean loadParameters() {
+        final Path path = GibbsConfigurationManager.getPath(myFolder + "/" + EWALD_STATE_FILE);
+        if (!opt.isOld() || !Files.exists(path)) return false;
+
+        try {
+            final List<String> lines = Files.readAllLines(path, Charset.forName("UTF-8"));
+            final String[] values = lines.get(0).split("\\s+");
+            if (Double.parseDouble(values[0]) != myDelta) {
+                System.out.println("WARNING: " + myFolder + " Ewald parameters of other delta ignored");
+                return false;
+            }
+            configure(Double.parseDouble(values[1]), Double.parseDouble(values[2]),
+                      Integer.parseInt(values[3]), true);
+        } catch (Exception e) {
+            System.out.println("WARNING: failed to read Ewald parameters for " + myFolder);
+            return false;
+        }
+        printStat(myFolder + ": restored ");
+        return true;
+    }
+
+    /**
+     * Saves delta, Rcut, alpha and Ncut (exact decimal doubles) to the point folder
+     */
+    private void saveParameters() {
+        final Path path = GibbsConfigurationManager.getPath(myFolder + "/" + EWALD_STATE_FILE);
+        try {
+            final String line = myDelta + "\t" + myRcut + "\t" + myAlpha + "\t" + myNcutoff;
+            Files.write(path, Collections.singletonList(line), Charset.forName("UTF-8"));
+        } catch (IOException e) {
+            System.out.println("ERROR: failed to save Ewald parameters for " + myFolder);
+        }
+    }
+
+    /**
+     * Counts (and fills if arrays given) half space k-vectors with 0 < n^2 < Ncut^2
+     */
+    private int fillKVectors(int[] x, int[] y, int[] z, double[] coeff) {
+        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
+        final double alphaL2 = myAlpha * L * myAlpha * L; // this AlphaL is UNITLESS
+        final double Pi2 = PI * PI;
+        final int Nmax = myNcutoff;
+        final int Nmax2 = myNcutoff * myNcutoff;
+        // e^2 / (2Pi L k T Bohr), twice for -k
+        final double prefactor = 2 * SCALE_FACTOR / (2.0 * PI * L * T);
+        int count = 0;
+
+        for (int Nx = 0; Nx <= Nmax; Nx++) {
+            for (int Ny = -Nmax; Ny <= Nmax; Ny++) {
+                for (int Nz = -Nmax; Nz <= Nmax; Nz++) {
+                    // first non zero component is positive
+                    if (Nx == 0 && (Ny < 0 || (Ny == 0 && Nz <= 0))) continue;
+
+                    final int n2 = Nx * Nx + Ny * Ny + Nz * Nz;
+                    if (n2 < Nmax2) {
+                        if (x != null) {
+                            x[count] = Nx + Nmax;
+                            y[count] = Ny + Nmax;
+                            z[count] = Nz + Nmax;
+                            // (2.40) formula in book
+                            coeff[count] = prefactor * exp(-Pi2 * n2 / alphaL2) / n2;
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Ewald energy is tracked by cached structure factors and dipole
+     */
+    @Override
+    protected boolean isEnergyIncremental() {
+        return true;
     }
 
+    /**
+     * Full recompute, rebuilds the cached structure factors and dipole moment as well
+     */
+    @Override
     protected double getCurrentEnergy() {
-//        return super.getCurrentEnergy();
-//        System.out.println("writing fixed energy!");
+        if (!tuned) {
+            if (!loadParameters()) {
+                tune();
+                saveParameters();
+            }
+            tuned = true;
+        }
+        cells.build(Xs, Ys, Zs, getNumPart());
+        initStructureFactors();
+
         final double ureal = Ureal();
         final double urecip = Urecip();
-        final double ubc = Ubc();
+        final double ubc = Ubc(dipoleX, dipoleY, dipoleZ);
 
 //        System.out.println("Real: " + SHORT_FORMAT.format(ureal)
 //                + ", Recip: " + SHORT_FORMAT.format(urecip)
@@ -61,158 +398,230 @@ public class NVTEnsemblePolochkaEwald extends NVTEnsemblePolochka {
 //                + ", BC: " + SHORT_FORMAT.format(ubc));
 
         return ureal
+                + myUimages
                 + urecip
                 - myUself
                 + ubc
                 ; // XXX try to turn off some parts
     }
 
-    private final double Ureal() {
-        double result = 0.;
-        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
-        final double alpha = myAlpha; // this Alpha is in 1/BOHR radiuses!
-        final int Nmax = myNcutoff;
-        final double rcut = myRcut;
-        final int NUM = getNumPart();
+    /**
+     * Energy shift of moving particle {@code which} to (x, y, z), cached structure factors and
+     * dipole are updated to the new position.
+     */
+    @Override
+    protected double commitEnergyShift(int which, double x, double y, double z) {
+        final double charge = charge(which);
+
+        // real space: moved particle pairs only
+        final double realShift = realEnergyOf(which, x, y, z) - realEnergyOf(which, Xs[which], Ys[which], Zs[which]);
+
+        // reciprocal space: rho(k) shift by the moved charge
+        fillExponents(Xs[which], Ys[which], Zs[which], expRe, expIm);
+        fillExponents(x, y, z, trialExpRe, trialExpIm);
+
+        double recipShift = 0;
+        for (int k = 0; k < kCoeff.length; k++) {
+            final double oldRe = structureRe(expRe, expIm, k), oldIm = structureIm(expRe, expIm, k);
+            final double newRe = structureRe(trialExpRe, trialExpIm, k);
+            final double newIm = structureIm(trialExpRe, trialExpIm, k);
+
+            final double re = rhoRe[k] + charge * (newRe - oldRe);
+            final double im = rhoIm[k] + charge * (newIm - oldIm);
+
+            recipShift += kCoeff[k] * (re * re + im * im - rhoRe[k] * rhoRe[k] - rhoIm[k] * rhoIm[k]);
+            rhoRe[k] = re;
+            rhoIm[k] = im;
+        }
 
-        for (int Nx = -Nmax; Nx <= Nmax; Nx++) {
-            for (int Ny = -Nmax; Ny <= Nmax; Ny++) {
-                for (int Nz = -Nmax; Nz <= Nmax; Nz++) {
+        // boundary term: dipole shift
+        final double oldBc = Ubc(dipoleX, dipoleY, dipoleZ);
+        dipoleX += charge * (x - Xs[which]);
+        dipoleY += charge * (y - Ys[which]);
+        dipoleZ += charge * (z - Zs[which]);
 
-                    // go over particles
-                    for (int i = 0; i < NUM; i++) {
-                        for (int j = 0; j < NUM; j++) {
-                            // exclude self term
-                            if (Nx == 0 && Ny == 0 && Nz == 0 && i == j) continue;
-
-                            final double range = getRange(i, j, Nx, Ny, Nz, L); // in BOHR radiuses
-
-                            if (range < rcut) {
-                                final double potential;
-
-                                if (j < (NUM / 2))   // First _num/2 are IONS
-                                {
-                                    if (i < (NUM / 2)) // ION-ION
-                                        potential = getEnergy(range, false);
-                                    else              // ION - electron
-                                        potential = getEnergy(range, true);
-                                } else                   // Last _num/2 are Electrons
-                                {
-                                    if (i < (NUM / 2)) // Electron - ION
-                                        potential = getEnergy(range, true);
-                                    else              // Electron - Electron
-                                        potential = getEnergy(range, false);
-                                }
-                                // (2.38) formula in book
-                                result += potential * erfc(alpha * range);
-                            }
-                        }
-                    }
-                }
-            }
-        }
+        cells.move(which, x, y, z);
+
+        return realShift + recipShift + Ubc(dipoleX, dipoleY, dipoleZ) - oldBc;
+    }
 
-        return result / 2.0;
+    private double charge(int i) {
+        return (i < getNumPart() / 2) ? 1 : -1; // First _num/2 are IONS
     }
 
-    private final double getRange(int i, int j, int nx, int ny, int nz, double L) {
-        final double x = fit2box(Xs[j] - Xs[i]) + nx * L;
-        final double y = fit2box(Ys[j] - Ys[i]) + ny * L;
-        final double z = fit2box(Zs[j] - Zs[i]) + nz * L;
+    // ------------------- real space ---------------------------------------
 
-        return Math.sqrt(x * x + y * y + z * z);
+    private IPairPotential realPair(int i, int j) {
+        final int half = getNumPart() / 2;
+        if (i < half)
+            return (j < half) ? realIonIon : realIonElectron;
+        else
+            return (j < half) ? realIonElectron : realElectronElectron;
     }
 
-    private final double Urecip() {
-        double result = 0.;
-        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
-        final double alphaL2 = myAlpha * L * myAlpha * L; // this AlphaL is UNITLESS
-        final double Pi2 = PI * PI;
-        final double Pi2_L = PI * 2 / L;
-        final int Nmax = myNcutoff;
-        final int Nmax2 = myNcutoff * myNcutoff;
-        final double q = e;
+    /**
+     * Screened energy of particle {@code which} placed to (x, y, z) with all others
+     */
+    private double realEnergyOf(int which, double x, double y, double z) {
+        double result = 0;
+
+        for (int cell : cells.getNeighbours(cells.cellOf(x, y, z))) {
+            for (int j = cells.getFirst(cell); j >= 0; j = cells.getNext(j)) {
+                if (j == which) continue;
+
+                final double dx = fit2box(Xs[j] - x);
+                final double dy = fit2box(Ys[j] - y);
+                final double dz = fit2box(Zs[j] - z);
+                result += realEnergy(realPair(which, j), dx, dy, dz);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * (2.38) formula in book, every pair once
+     */
+    private double Ureal() {
         final int NUM = getNumPart();
+        double result = 0;
 
-        int n2 = 0;
+        for (int i = 0; i < NUM; i++) {
+            for (int cell : cells.getNeighbours(cells.getCell(i))) {
+                for (int j = cells.getFirst(cell); j >= 0; j = cells.getNext(j)) {
+                    if (j <= i) continue;
+
+                    final double dx = fit2box(Xs[j] - Xs[i]);
+                    final double dy = fit2box(Ys[j] - Ys[i]);
+                    final double dz = fit2box(Zs[j] - Zs[i]);
+                    result += realEnergy(realPair(i, j), dx, dy, dz);
+                }
+            }
+        }
+        return result;
+    }
 
-        for (int Nx = -Nmax; Nx <= Nmax; Nx++) {
-            for (int Ny = -Nmax; Ny <= Nmax; Ny++) {
-                for (int Nz = -Nmax; Nz <= Nmax; Nz++) {
-                    n2 = Nx * Nx + Ny * Ny + Nz * Nz;
-                    if (n2 == 0) continue;
-
-                    if (n2 < Nmax2) { // XXX check if this influence results
-                        final double coeff = exp(-Pi2 * n2 / alphaL2) / n2;
-                        double Qcos = 0.0, Qsin = 0.0;
-
-                        for (int i = 0; i < NUM; i++) {
-                            if (i < (NUM / 2)) {   // First _num/2 are IONS
-                                Qcos += q * cos(Pi2_L * (Nx * Xs[i] + Ny * Ys[i] + Nz * Zs[i]));
-                                Qsin += q * sin(Pi2_L * (Nx * Xs[i] + Ny * Ys[i] + Nz * Zs[i]));
-                            } else {                  // Last _num/2 are Electrons
-                                Qcos -= q * cos(Pi2_L * (Nx * Xs[i] + Ny * Ys[i] + Nz * Zs[i]));
-                                Qsin -= q * sin(Pi2_L * (Nx * Xs[i] + Ny * Ys[i] + Nz * Zs[i]));
-                            }
-                        }
-                        // (2.40) formula in book
-                        result += coeff * (Qcos * Qcos + Qsin * Qsin);
-                    }
+    /**
+     * Screened pair energy of the minimum image (dx, dy, dz) and its periodic images within Rcut
+     */
+    private double realEnergy(IPairPotential pair, double dx, double dy, double dz) {
+        if (myImages == 0) return pair.getEnergy(dx * dx + dy * dy + dz * dz);
+
+        final double L = getBoxSize();
+        double result = 0;
+        for (int nx = -myImages; nx <= myImages; nx++) {
+            final double x = dx + nx * L;
+            for (int ny = -myImages; ny <= myImages; ny++) {
+                final double y = dy + ny * L;
+                for (int nz = -myImages; nz <= myImages; nz++) {
+                    final double z = dz + nz * L;
+                    result += pair.getEnergy(x * x + y * y + z * z);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * (2.38) formula in book i == j terms: every particle with its own images within Rcut
+     */
+    private double Uimages() {
+        final double L = getBoxSize();
+        double ions = 0, electrons = 0;
+        for (int nx = -myImages; nx <= myImages; nx++) {
+            for (int ny = -myImages; ny <= myImages; ny++) {
+                for (int nz = -myImages; nz <= myImages; nz++) {
+                    if (nx == 0 && ny == 0 && nz == 0) continue;
+
+                    final double r2 = (nx * nx + ny * ny + nz * nz) * L * L;
+                    ions += realIonIon.getEnergy(r2);
+                    electrons += realElectronElectron.getEnergy(r2);
                 }
             }
         }
+        final int half = getNumPart() / 2;
+        return (half * ions + (getNumPart() - half) * electrons) / 2;
+    }
 
-        return result / (2.0 * PI * L * k * T * BOHR);//XXX BOHR radiuses and kT?
+    // ------------------- reciprocal space ---------------------------------
+
+    /**
+     * Fills per axis exp(i 2Pi n x / L) for n in [-Ncut, Ncut] by recurrence, 3 sin/cos pairs
+     */
+    private void fillExponents(double x, double y, double z, double[][] re, double[][] im) {
+        final double Pi2_L = PI * 2 / getBoxSize();
+        fillAxis(Pi2_L * x, re[0], im[0]);
+        fillAxis(Pi2_L * y, re[1], im[1]);
+        fillAxis(Pi2_L * z, re[2], im[2]);
     }
 
-    private final double Uself() {
-        return SCALE_FACTOR * getNumPart() * myAlpha / (sqrt(PI) * T);
+    private void fillAxis(double angle, double[] re, double[] im) {
+        final int c = myNcutoff;
+        final double cos1 = cos(angle), sin1 = sin(angle);
+
+        re[c] = 1;
+        im[c] = 0;
+        for (int n = 1; n <= c; n++) {
+            re[c + n] = re[c + n - 1] * cos1 - im[c + n - 1] * sin1;
+            im[c + n] = re[c + n - 1] * sin1 + im[c + n - 1] * cos1;
+            re[c - n] = re[c + n];  // exp(-i a) = conj(exp(i a))
+            im[c - n] = -im[c + n];
+        }
     }
 
-    private final double Ubc() {
-        double resultx = 0.;
-        double resulty = 0.;
-        double resultz = 0.;
-        final double Pi2_3L3 = PI * 2 / (3 * getBoxSize() * getBoxSize() * getBoxSize());
-        // all distances are in BOHR radiuses!!!
-        final double q = e;
+    // real part of exp(i k r) = ex * ey * ez for k-vector k
+    private double structureRe(double[][] re, double[][] im, int k) {
+        final double xyRe = re[0][kx[k]] * re[1][ky[k]] - im[0][kx[k]] * im[1][ky[k]];
+        final double xyIm = re[0][kx[k]] * im[1][ky[k]] + im[0][kx[k]] * re[1][ky[k]];
+        return xyRe * re[2][kz[k]] - xyIm * im[2][kz[k]];
+    }
+
+    private double structureIm(double[][] re, double[][] im, int k) {
+        final double xyRe = re[0][kx[k]] * re[1][ky[k]] - im[0][kx[k]] * im[1][ky[k]];
+        final double xyIm = re[0][kx[k]] * im[1][ky[k]] + im[0][kx[k]] * re[1][ky[k]];
+        return xyRe * im[2][kz[k]] + xyIm * re[2][kz[k]];
+    }
+
+    /**
+     * Recomputes cached rho(k) and dipole moment from scratch
+     */
+    private void initStructureFactors() {
         final int NUM = getNumPart();
+        Arrays.fill(rhoRe, 0);
+        Arrays.fill(rhoIm, 0);
+        dipoleX = dipoleY = dipoleZ = 0;
 
         for (int i = 0; i < NUM; i++) {
-            if (i < (NUM / 2)) {   // First _num/2 are IONS
-                resultx += Xs[i];
-                resulty += Ys[i];
-                resultz += Zs[i];
-            } else {
-                resultx -= Xs[i];
-                resulty -= Ys[i];
-                resultz -= Zs[i];
+            final double charge = charge(i);
+            fillExponents(Xs[i], Ys[i], Zs[i], expRe, expIm);
+
+            for (int k = 0; k < kCoeff.length; k++) {
+                rhoRe[k] += charge * structureRe(expRe, expIm, k);
+                rhoIm[k] += charge * structureIm(expRe, expIm, k);
             }
+            dipoleX += charge * Xs[i];
+            dipoleY += charge * Ys[i];
+            dipoleZ += charge * Zs[i];
         }
+    }
 
-        return SCALE_FACTOR
-                * Pi2_3L3 * (resultx * resultx + resulty * resulty + resultz * resultz) / T;
+    private double Urecip() {
+        double result = 0.;
+        for (int k = 0; k < kCoeff.length; k++) {
+            result += kCoeff[k] * (rhoRe[k] * rhoRe[k] + rhoIm[k] * rhoIm[k]);
+        }
+        return result;
     }
 
-/*    private final double getEwPotential(int i, int j, double distance) {
-        final double r = StrictMath.sqrt(dSquared(Xs[j] - Xs[i], Ys[j] - Ys[i], Zs[j] - Zs[i]));
+    private final double Uself() {
+        return SCALE_FACTOR * getNumPart() * myAlpha / (sqrt(PI) * T);
+    }
 
-        if (i != j) {
-            if (j < (numPart / 2))   // First _num/2 are IONS
-            {
-                if (i < (numPart / 2)) // ION-ION
-                    return getEnergyAsym(r, false);
-                else              // ION - electron
-                    return getEnergyAsym(r, true);
-            } else                   // Last _num/2 are Electrons
-            {
-                if (i < (numPart / 2)) // Electron - ION
-                    return getEnergyAsym(r, true);
-                else              // Electron - Electron
-                    return getEnergyAsym(r, false);
-            }
-        }
-        return 0;
+    /**
+     * @param dx,dy,dz dipole moment (in Bohrs)
+     */
+    private double Ubc(double dx, double dy, double dz) {
+        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
+        final double Pi2_3L3 = PI * 2 / (3 * L * L * L);
+        return SCALE_FACTOR * Pi2_3L3 * (dx * dx + dy * dy + dz * dz) / T;
     }
-    */
 }
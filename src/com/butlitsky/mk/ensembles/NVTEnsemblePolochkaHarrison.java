@@ -3,7 +3,7 @@ package com.butlitsky.mk.ensembles;
 import com.butlitsky.mk.options.CLOptions;
 import com.butlitsky.mk.options.EOptions;
 
-import static org.apache.commons.math3.util.FastMath.pow;
+import static org.apache.commons.math3.util.FastMath.*;
 
 /**
  * Harrison R spheres summation summation algorithm.
@@ -11,6 +11,10 @@ import static org.apache.commons.math3.util.FastMath.pow;
  * See page PHYSICAL REVIEW B 73, 212103, 2006
  * Simple calculation of Madelung constants, Walter A. Harrison
  * <p/>
+ * Every particle interacts with all charges of the image cells n^2 < N^2 and with charges of
+ * the outer image cells inside the R = (N + 1/2) L sphere around the particle. Image offsets of
+ * both kinds are precomputed, the pair term depends on the raw (not minimum image) distance, so
+ * the energy is tracked by the moved particle pairs delta, O(N * images) per accepted move.
  */
 public class NVTEnsemblePolochkaHarrison extends NVTEnsemblePolochka {
     private final double myRcut;
@@ -18,6 +22,23 @@ public class NVTEnsemblePolochkaHarrison extends NVTEnsemblePolochka {
     private final double myNcutoff2;
     private final int N;
 
+    private final IPairPotential ionIon;
+    private final IPairPotential ionElectron;
+    private final IPairPotential electronElectron;
+
+    // image cells offsets (in Bohrs) counted whole: n^2 < N^2
+    private final double[] fullX;
+    private final double[] fullY;
+    private final double[] fullZ;
+
+    // outer image cells offsets which may intersect the R sphere, charges are tested one by one
+    private final double[] shellX;
+    private final double[] shellY;
+    private final double[] shellZ;
+
+    // every particle with its own images energy, doesn't depend on positions
+    private final double mySelfEnergy;
+
 
     protected NVTEnsemblePolochkaHarrison(EOptions options) {
         super(options);
@@ -25,76 +46,150 @@ public class NVTEnsemblePolochkaHarrison extends NVTEnsemblePolochka {
         N = CLOptions.HARRISON_N;
         myL = getBoxSize();
         myRcut = myL * (0.5 + N);
-        myNcutoff2 = pow(Math.sqrt(2) + N, 2);
+        // coarse grain image cells limitation, raw distances are within sqrt(3) L
+        myNcutoff2 = pow(0.5 + N + Math.sqrt(3), 2);
+
+        final double maxR = myRcut + sqrt(3) * myL;
+        ionIon = PotentialTable.tabulate(createPairPotential(false, true), maxR * maxR, "h i-i");
+        ionElectron = PotentialTable.tabulate(createPairPotential(false, false), maxR * maxR, "h i-e");
+        electronElectron = PotentialTable.tabulate(createPairPotential(true, false), maxR * maxR, "h e-e");
+
+        final int full = fillImages(true, null, null, null);
+        fullX = new double[full];
+        fullY = new double[full];
+        fullZ = new double[full];
+        fillImages(true, fullX, fullY, fullZ);
+
+        final int shell = fillImages(false, null, null, null);
+        shellX = new double[shell];
+        shellY = new double[shell];
+        shellZ = new double[shell];
+        fillImages(false, shellX, shellY, shellZ);
+
+        mySelfEnergy = selfEnergy();
     }
 
-
-    protected double getCurrentEnergy() {
-        final int Nmax = N;
+    /**
+     * Counts (and fills if arrays given) image cells offsets: whole cells n^2 < N^2 or outer
+     * cells with any point closer than R for raw distances in (-L, L) per axis
+     */
+    private int fillImages(boolean whole, double[] x, double[] y, double[] z) {
         final int N2 = N * N;
-        final int NUM = getNumPart();
-        final int NUM_2 = NUM / 2;
+        final int Nmax = N + 2; // (N + 1/2) L sphere with (-L, L) raw distances
         final double Rcut2 = myRcut * myRcut;
-        double result = 0;
-
-
-        for (int i = 0; i < NUM; i++) {
+        int count = 0;
+
+        for (int nx = -Nmax; nx <= Nmax; nx++) {
+            for (int ny = -Nmax; ny <= Nmax; ny++) {
+                for (int nz = -Nmax; nz <= Nmax; nz++) {
+                    final int n2 = nx * nx + ny * ny + nz * nz;
+                    final double bx = max(0, abs(nx) - 1) * myL;
+                    final double by = max(0, abs(ny) - 1) * myL;
+                    final double bz = max(0, abs(nz) - 1) * myL;
+
+                    final boolean isWhole = n2 < N2;
+                    final boolean isShell = !isWhole && n2 < myNcutoff2
+                            && (bx * bx + by * by + bz * bz < Rcut2);
+
+                    if (whole ? isWhole : isShell) {
+                        if (x != null) {
+                            x[count] = nx * myL;
+                            y[count] = ny * myL;
+                            z[count] = nz * myL;
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
 
-//            double Q = 0;  // find effective Q for each particle
+    /**
+     * Energy is tracked by moved particle pairs delta
+     */
+    @Override
+    protected boolean isEnergyIncremental() {
+        return true;
+    }
 
-            // TODO: try effective i-e charges next (with double type)
-            double energy = 0; // total energy of the i particle
+    @Override
+    protected double getCurrentEnergy() {
+        final int NUM = getNumPart();
+        double result = mySelfEnergy;
 
-            final int iQ = (i < NUM_2) ? 1 : -1; // FIRST NUM/2 are ions
+        for (int i = 0; i < NUM; i++) {
+            for (int j = i + 1; j < NUM; j++) {
+                result += imagesEnergy(pair(i, j), Xs[j] - Xs[i], Ys[j] - Ys[i], Zs[j] - Zs[i]);
+            }
+        }
+        return result;
+    }
 
-            for (int nx = -Nmax; nx <= Nmax; nx++) {
-                for (int ny = -Nmax; ny <= Nmax; ny++) {
-                    for (int nz = -Nmax; nz <= Nmax; nz++) {
-                        final double n2 = nx * nx + ny * ny + nz * nz;
+    /**
+     * Moved particle pairs only, the self images term doesn't change
+     */
+    @Override
+    protected double commitEnergyShift(int which, double x, double y, double z) {
+        final int NUM = getNumPart();
+        double shift = 0;
 
-                        // coarse grain sum limitation < R cutoff
-                        if (n2 < myNcutoff2) {
+        for (int j = 0; j < NUM; j++) {
+            if (j == which) continue;
 
+            final IPairPotential pair = pair(which, j);
+            shift += imagesEnergy(pair, Xs[j] - x, Ys[j] - y, Zs[j] - z)
+                    - imagesEnergy(pair, Xs[j] - Xs[which], Ys[j] - Ys[which], Zs[j] - Zs[which]);
+        }
+        return shift;
+    }
 
-                            // summ all other particles energy on i-th
-                            for (int j = 0; j < NUM; j++) {
-                                final double jx = Xs[j] + nx * myL;
-                                final double jy = Ys[j] + nx * myL;
-                                final double jz = Zs[j] + nx * myL;
+    private IPairPotential pair(int i, int j) {
+        final int NUM_2 = getNumPart() / 2; // FIRST NUM/2 are ions
+        if (i < NUM_2)
+            return (j < NUM_2) ? ionIon : ionElectron;
+        else
+            return (j < NUM_2) ? ionElectron : electronElectron;
+    }
 
-                                // fine grain R cuttof (we count only charges inside R sphere)
-                                if (n2 < N2 || (jx * jx + jy * jy + jz * jz < Rcut2)) {
+    /**
+     * @param dx,dy,dz raw distance from the particle to the other one in the zero box
+     * @return energy with the other one images inside the R sphere around the particle
+     */
+    private double imagesEnergy(IPairPotential pair, double dx, double dy, double dz) {
+        final double Rcut2 = myRcut * myRcut;
+        double energy = 0;
 
-                                    final int jQ = (j < NUM_2) ? 1 : -1;
-                                    // exclude self i-i term in Zero Box
-                                    if (i != j || nx != 0 || ny != 0 || nz != 0) {
-                                        // i-j distance
-                                        final double range = getRange(i, j, nx, ny, nz);
-//                                        Q += getQ(iQ, jQ, range);
-                                        energy += getEnergy(range, (iQ != jQ));
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        for (int n = 0; n < fullX.length; n++) {
+            final double x = dx + fullX[n];
+            final double y = dy + fullY[n];
+            final double z = dz + fullZ[n];
+            energy += pair.getEnergy(x * x + y * y + z * z);
+        }
 
+        // fine grain R cuttof (we count only charges inside R sphere)
+        for (int n = 0; n < shellX.length; n++) {
+            final double x = dx + shellX[n];
+            final double y = dy + shellY[n];
+            final double z = dz + shellZ[n];
+            final double r2 = x * x + y * y + z * z;
+            if (r2 < Rcut2) {
+                energy += pair.getEnergy(r2);
             }
-
-//            final double corr = getCorrectionEnergy(iQ, Q);
-//            if (corr != 0) {
-//                System.out.println("energy: " + energy + ", Q: " + Q + ", iQ: " + iQ +
-//                        "correction: " + corr);
-//                System.out.println("Rcut " + myRcut);
-//            }
-
-//            energy += corr; // add compensating energy energy
-
-            result += energy;
         }
+        return energy;
+    }
 
-//        System.out.println("RES: " + result);
-        return result / 2.0;
+    /**
+     * Every particle with its own images (excluding self i-i term in Zero Box), 1/2 for double
+     * counting
+     */
+    private double selfEnergy() {
+        final int NUM_2 = getNumPart() / 2;
+        final double ions = imagesEnergy(ionIon, 0, 0, 0) - ionIon.getEnergy(0);
+        final double electrons = imagesEnergy(electronElectron, 0, 0, 0) - electronElectron.getEnergy(0);
+
+        return (NUM_2 * ions + NUM_2 * electrons) / 2.0;
     }
 
     /**
@@ -129,12 +224,4 @@ public class NVTEnsemblePolochkaHarrison extends NVTEnsemblePolochka {
         }
 
     }
-
-    private final double getRange(int i, int j, int nx, int ny, int nz) {
-        final double x = (Xs[j] - Xs[i]) + nx * myL;
-        final double y = (Ys[j] - Ys[i]) + ny * myL;
-        final double z = (Zs[j] - Zs[i]) + nz * myL;
-
-        return Math.sqrt(x * x + y * y + z * z);
-    }
 }
@@ -0,0 +1,304 @@
+package com.butlitsky.mk.ensembles;
+
+import com.butlitsky.mk.math.Fft3D;
+import com.butlitsky.mk.options.CLOptions;
+import com.butlitsky.mk.options.EOptions;
+
+import java.util.Arrays;
+
+import static org.apache.commons.math3.util.FastMath.*;
+
+/**
+ * Smooth particle-mesh Ewald (Essmann et al., J. Chem. Phys. 103, 8577 (1995)).
+ * <p/>
+ * Real space part is the minimum image screened pair energies (Coulomb part screened, core
+ * unscreened, see {@link ScreenedPotential}) cut at Rcut (about 270 neighbours, not less than
+ * the core radius and not more than L/2) from the linked cells index, reciprocal part is
+ * charges spread to a K^3 grid by cardinal B-splines of order p, 3D FFT and the precomputed
+ * influence function (Ewald coefficient times B-spline moduli). Full energy is O(N) real space
+ * plus O(N p^3 + K^3 log K) reciprocal space, the same terms as
+ * {@link NVTEnsemblePolochkaEwald}, and does not depend on alpha, so both agree within delta.
+ */
+public class NVTEnsemblePolochkaPME extends NVTEnsemblePolochka {
+
+    // real space cutoff in average interparticle distances
+    private static final double RCUT_DISTANCES = 4;
+
+    private final double myDelta;
+    private final double myAlpha;
+    private final double myRcut;
+    private final double myUself;
+    private final int myOrder;
+    private final int myGrid;
+
+    // real space screened pair energies (tabulated if enabled)
+    private final IPairPotential realIonIon;
+    private final IPairPotential realIonElectron;
+    private final IPairPotential realElectronElectron;
+
+    // real space neighbours index
+    private final CellList cells;
+
+    private final Fft3D fft;
+    private final double[] gridRe;
+    private final double[] gridIm;
+
+    // Ewald coefficient times B-spline moduli per grid frequency, all prefactors included (in kT)
+    private final double[] influence;
+
+    // per axis spline weights of the current particle, theta[i] goes to grid point base + i
+    private final double[][] theta;
+    private final int[] base = new int[3];
+
+    protected NVTEnsemblePolochkaPME(EOptions options) {
+        super(options);
+        myDelta = CLOptions.EWALD_DELTA;
+        myOrder = CLOptions.PME_ORDER;
+
+        myRcut = min(getBoxSize() / 2,
+                     max(getCoreRadius(), RCUT_DISTANCES * getBoxSize() / cbrt(getNumPart())));
+        if (getCoreRadius() > myRcut) {
+            System.out.println("WARNING: " + myFolder + " core radius exceeds L/2, PME real space is cut");
+        }
+        myAlpha = sqrt(-log(myDelta)) / myRcut;
+        myUself = SCALE_FACTOR * getNumPart() * myAlpha / (sqrt(PI) * T);
+
+        myGrid = (CLOptions.PME_GRID > 0) ? CLOptions.PME_GRID : autoGrid();
+
+        final double rcut2 = myRcut * myRcut;
+        realIonIon = PotentialTable.tabulate(
+                new ScreenedPotential(createPairPotential(false, true), getCoulomb(false, true), myAlpha, rcut2),
+                rcut2, "re i-i");
+        realIonElectron = PotentialTable.tabulate(
+                new ScreenedPotential(createPairPotential(false, false), getCoulomb(false, false), myAlpha, rcut2),
+                rcut2, "re i-e");
+        realElectronElectron = PotentialTable.tabulate(
+                new ScreenedPotential(createPairPotential(true, false), getCoulomb(true, false), myAlpha, rcut2),
+                rcut2, "re e-e");
+
+        cells = new CellList(getBoxSize(), myRcut, getNumPart());
+        fft = new Fft3D(myGrid);
+        gridRe = new double[myGrid * myGrid * myGrid];
+        gridIm = new double[myGrid * myGrid * myGrid];
+        theta = new double[3][myOrder];
+        influence = new double[myGrid * myGrid * myGrid];
+        fillInfluence();
+
+        System.out.print(myFolder + ": PME delta = " + myDelta + ", alphaL = " + myAlpha * getBoxSize());
+        System.out.println(", grid = " + myGrid + "^3, order = " + myOrder + ", Rcut = " + myRcut / getBoxSize());
+    }
+
+    /**
+     * Every recorded energy after an accepted move is a full PME recompute (O(N p^3 + K^3 log K)),
+     * so energies are recorded once a sweep (N steps) by default, shorter explicit stride is
+     * warned about
+     */
+    @Override
+    protected int getEnergyStride() {
+        if (CLOptions.NUM_ENERGY_AVG_STRIDE <= 0) return getNumPart();
+
+        if (CLOptions.NUM_ENERGY_AVG_STRIDE < getNumPart()) {
+            System.out.println("WARNING: " + myFolder + " PME energy stride " + CLOptions.NUM_ENERGY_AVG_STRIDE
+                                       + " is less than a sweep, full PME recompute per recorded accepted move");
+        }
+        return CLOptions.NUM_ENERGY_AVG_STRIDE;
+    }
+
+    /**
+     * Smallest power of two grid resolving frequencies with Ewald coefficient above delta, with
+     * 1.5x margin for the B-splines aliasing (order 4 relative error ~1e-5)
+     */
+    private int autoGrid() {
+        final double alphaL = myAlpha * getBoxSize();
+        final double nmax = alphaL * sqrt(-log(myDelta)) / PI;
+
+        int grid = 8;
+        while (grid < 3 * nmax) {
+            grid <<= 1;
+        }
+        return grid;
+    }
+
+    /**
+     * (2.40) formula in book with structure factors approximated by B-splines, Essmann (4.7)
+     */
+    private void fillInfluence() {
+        final int K = myGrid;
+        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
+        final double alphaL2 = myAlpha * L * myAlpha * L; // this AlphaL is UNITLESS
+        final double Pi2 = PI * PI;
+        // e^2 / (2Pi L k T Bohr)
+        final double prefactor = SCALE_FACTOR / (2.0 * PI * L * T);
+
+        final double[] moduli = splineModuli();
+
+        for (int x = 0; x < K; x++) {
+            final int nx = (x < K / 2) ? x : x - K;
+            for (int y = 0; y < K; y++) {
+                final int ny = (y < K / 2) ? y : y - K;
+                for (int z = 0; z < K; z++) {
+                    final int nz = (z < K / 2) ? z : z - K;
+                    final int n2 = nx * nx + ny * ny + nz * nz;
+                    if (n2 == 0) continue;
+
+                    influence[(x * K + y) * K + z] = prefactor * exp(-Pi2 * n2 / alphaL2) / n2
+                            * moduli[x] * moduli[y] * moduli[z];
+                }
+            }
+        }
+    }
+
+    /**
+     * |b(m)|^2 = 1 / |sum(M_p(k + 1) * exp(i 2Pi m k / K))|^2, zero where the sum vanishes
+     */
+    private double[] splineModuli() {
+        final int K = myGrid;
+        final double[] moduli = new double[K];
+        final double[] weights = new double[myOrder];
+        splineWeights(0, weights); // weights[i] = M_p(p - 1 - i)
+
+        for (int m = 0; m < K; m++) {
+            double re = 0, im = 0;
+            for (int k = 0; k <= myOrder - 2; k++) {
+                final double angle = 2 * PI * m * k / K;
+                re += weights[myOrder - 2 - k] * cos(angle);
+                im += weights[myOrder - 2 - k] * sin(angle);
+            }
+            final double abs2 = re * re + im * im;
+            moduli[m] = (abs2 > 1e-14) ? 1 / abs2 : 0;
+        }
+        return moduli;
+    }
+
+    /**
+     * Cardinal B-spline weights for fractional offset w in [0, 1): out[i] = M_p(w + p - 1 - i)
+     */
+    private void splineWeights(double w, double[] out) {
+        final int p = myOrder;
+        out[0] = 1 - w;
+        out[1] = w;
+        for (int k = 2; k < p; k++) out[k] = 0;
+
+        for (int k = 3; k <= p; k++) {
+            final double div = 1.0 / (k - 1);
+            out[k - 1] = div * w * out[k - 2];
+            for (int j = 1; j <= k - 2; j++) {
+                out[k - j - 1] = div * ((w + j) * out[k - j - 2] + (k - j - w) * out[k - j - 1]);
+            }
+            out[0] = div * (1 - w) * out[0];
+        }
+    }
+
+    /**
+     * Ewald energy is recomputed only when recorded (see {@link #getEnergyStride()}), the moves
+     * themselves use pair potentials
+     */
+    @Override
+    protected boolean isEnergyIncremental() {
+        return false;
+    }
+
+    @Override
+    protected double getCurrentEnergy() {
+        return Ureal() + Urecip() - myUself + Ubc();
+    }
+
+    private IPairPotential realPair(int i, int j) {
+        final int half = getNumPart() / 2;
+        if (i < half)
+            return (j < half) ? realIonIon : realIonElectron;
+        else
+            return (j < half) ? realIonElectron : realElectronElectron;
+    }
+
+    /**
+     * (2.38) formula in book, minimum images only as Rcut <= L/2
+     */
+    private double Ureal() {
+        final int NUM = getNumPart();
+        double result = 0;
+
+        cells.build(Xs, Ys, Zs, NUM);
+        for (int i = 0; i < NUM; i++) {
+            for (int cell : cells.getNeighbours(cells.getCell(i))) {
+                for (int j = cells.getFirst(cell); j >= 0; j = cells.getNext(j)) {
+                    if (j <= i) continue;
+
+                    final double dx = fit2box(Xs[j] - Xs[i]);
+                    final double dy = fit2box(Ys[j] - Ys[i]);
+                    final double dz = fit2box(Zs[j] - Zs[i]);
+                    result += realPair(i, j).getEnergy(dx * dx + dy * dy + dz * dz);
+                }
+            }
+        }
+        return result;
+    }
+
+    private double Urecip() {
+        spreadCharges();
+        fft.forward(gridRe, gridIm);
+
+        double result = 0.;
+        for (int m = 0; m < influence.length; m++) {
+            result += influence[m] * (gridRe[m] * gridRe[m] + gridIm[m] * gridIm[m]);
+        }
+        return result;
+    }
+
+    /**
+     * Charge assignment Q(k) = sum(charge * M_p(u_x - k_x) * M_p(u_y - k_y) * M_p(u_z - k_z))
+     */
+    private void spreadCharges() {
+        final int NUM = getNumPart();
+        final int K = myGrid;
+        final int p = myOrder;
+        Arrays.fill(gridRe, 0);
+        Arrays.fill(gridIm, 0);
+
+        for (int i = 0; i < NUM; i++) {
+            final double charge = (i < NUM / 2) ? 1 : -1; // First _num/2 are IONS
+            fillTheta(0, Xs[i]);
+            fillTheta(1, Ys[i]);
+            fillTheta(2, Zs[i]);
+
+            for (int a = 0; a < p; a++) {
+                final int x = wrap(base[0] + a);
+                final double qx = charge * theta[0][a];
+                for (int b = 0; b < p; b++) {
+                    final int xy = (x * K + wrap(base[1] + b)) * K;
+                    final double qxy = qx * theta[1][b];
+                    for (int c = 0; c < p; c++) {
+                        gridRe[xy + wrap(base[2] + c)] += qxy * theta[2][c];
+                    }
+                }
+            }
+        }
+    }
+
+    private void fillTheta(int axis, double coordinate) {
+        double u = coordinate / getBoxSize() * myGrid;
+        u -= floor(u / myGrid) * myGrid; // [0, K)
+
+        final int cell = (int) u;
+        base[axis] = cell - myOrder + 1;
+        splineWeights(u - cell, theta[axis]);
+    }
+
+    private int wrap(int k) {
+        return (k < 0) ? k + myGrid : (k >= myGrid ? k - myGrid : k);
+    }
+
+    private double Ubc() {
+        final int NUM = getNumPart();
+        double dx = 0, dy = 0, dz = 0;
+        for (int i = 0; i < NUM; i++) {
+            final double charge = (i < NUM / 2) ? 1 : -1;
+            dx += charge * Xs[i];
+            dy += charge * Ys[i];
+            dz += charge * Zs[i];
+        }
+        final double L = getBoxSize(); // all distances are in BOHR radiuses!!!
+        final double Pi2_3L3 = PI * 2 / (3 * L * L * L);
+        return SCALE_FACTOR * Pi2_3L3 * (dx * dx + dy * dy + dz * dz) / T;
+    }
+}
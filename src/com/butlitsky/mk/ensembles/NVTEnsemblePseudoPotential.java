@@ -31,65 +31,61 @@ public class NVTEnsemblePseudoPotential extends NVTEnsemble {
      * <p/>
      * => converted potential coeff. = e^2 / 7,30607881244045 * (e+5) =
      * 3,15775016117465 e+5 = e+6/ 3,1668116505709 = 315775,01611746440408
+     * <p/>
+     * Same charges repulsion is limited on 2 Bohr radiuses.
      */
-    protected final double getPotential(double r, boolean attraction) {
-
-        if (attraction)   // ion-electron
-        {
-            if (r < LACING_POINT) {
-                // 100 K, lvl 10-30 pseudo potential
-                return -24.836465138387798 + 1.6042494381847763 * pow(r, 0.3);
-            } else {
-                return -1 * SCALE_FACTOR / (T * r);
-            }
-        } else {
-            if (r < 2)  // in Bor's radiuses
-                return getPotential(2, false);
-            else
-                // The hard-coded Coloumb energy, always the same.
-                return (SCALE_FACTOR / (T * r));
-        }
+    @Override
+    protected IPairPotential createPairPotential(boolean ee, boolean ii) {
+        if (ee || ii)
+            return CoreCoulombPotential.repulsion(T, 2);
+        else
+            return new PseudoAttraction(T);
     }
 
+    /**
+     * Ion-electron pseudo potential up to the lacing point, Coulomb after it.
+     * Pseudo potential part makes zero contribution to energy.
+     */
+    private static final class PseudoAttraction implements IPairPotential {
+        private static final double LACING_R2 = LACING_POINT * LACING_POINT;
+        private final double coulomb;
 
-    protected final double getEnergy(double r, boolean attraction) {
-        // Assume non-coulomb potential makes zero contribution to Energy
-        if (attraction && (r < LACING_POINT)) {
-            return 0;
-        } else {
-            return getPotential(r, attraction); // xxx: temporary check full potential calculation
+        PseudoAttraction(int T) {
+            coulomb = -SCALE_FACTOR / T;
         }
-    }
 
+        @Override
+        public double getPotential(double r2) {
+            if (r2 < LACING_R2) {
+                // 100 K, lvl 10-30 pseudo potential, pow(r, 0.3) == pow(r2, 0.15)
+                return -24.836465138387798 + 1.6042494381847763 * pow(r2, 0.15);
+            } else {
+                return coulomb / Math.sqrt(r2);
+            }
+        }
 
-    @Override
-    /**
-     * used to introduce not symmetric i-i & e-e potentials
-     *
-     */
-    protected double getPotentialAsym(double r, boolean ee, boolean ii) {
-//  Barker approx.
-//        if (ee)
-//            return getPotential(r, false) * (1 - exp(-8.35E-4 * r * pow(T, 0.625)));
-//
-//        if (ii)
-        if (ee || ii)
-            return getPotential(r, false);
-        else
-            return getPotential(r, true);
-    }
+        @Override
+        public double getEnergy(double r2) {
+            return (r2 < LACING_R2) ? 0 : coulomb / Math.sqrt(r2);
+        }
 
+        /**
+         * Pseudo potential and Coulomb are not exactly laced, so the lacing point is a jump
+         */
+        @Override
+        public double getMaxSlope(double r) {
+            return (r < LACING_POINT) ? Double.POSITIVE_INFINITY : Math.abs(coulomb) / (r * r);
+        }
 
-    protected final double getEnergyAsym(double r, boolean ee, boolean ii) {
-// Barker approx.
-//        if (ee)
-//            return getPotential(r, false)
-//                    * (1 - exp(-8.35E-4 * r * pow(T, 0.625)) * (1 - r * (8.35E-4) * pow(T, 0.625) * 0.625));
-//
-//        if (ii)
-        if (ee || ii)
-            return getEnergy(r, false);
-        else
-            return getEnergy(r, true);
+        @Override
+        public double sumPotentials(double[] r2, double[] out, int from, int to) {
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                final double pot = getPotential(r2[i]);
+                out[i] = pot;
+                sum += pot;
+            }
+            return sum;
+        }
     }
 }
@@ -0,0 +1,76 @@
+package com.butlitsky.mk.ensembles;
+
+/**
+ * Batched pair sums helpers. Distances are calculated in a separate branchless pass (minimum
+ * image by rint), so both this pass and {@link IPairPotential#sumPotentials} are simple
+ * counted loops over primitive arrays the JIT can vectorize.
+ */
+final class PairKernels {
+    private PairKernels() {
+    }
+
+    /**
+     * r2[i] = minimum image squared distance between (x, y, z) and i-th particle, for i in
+     * [from, to). Coordinates must be inside the box.
+     */
+    static void fillDistances(final double[] xs, final double[] ys, final double[] zs,
+                              final int from, final int to,
+                              final double x, final double y, final double z,
+                              final double boxSize, final double[] r2) {
+        final double invBox = 1.0 / boxSize;
+        for (int i = from; i < to; i++) {
+            double dx = x - xs[i];
+            double dy = y - ys[i];
+            double dz = z - zs[i];
+            dx -= boxSize * Math.rint(dx * invBox);
+            dy -= boxSize * Math.rint(dy * invBox);
+            dz -= boxSize * Math.rint(dz * invBox);
+            r2[i] = dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    /**
+     * r2[i] = minimum image squared distance between (x, y, z) and i-th particle, for i in
+     * [from, to). Coordinates are fractions of the box size inside [0, 1).
+     */
+    static void fillFractionDistances(final double[] xs, final double[] ys, final double[] zs,
+                                      final int from, final int to,
+                                      final double x, final double y, final double z,
+                                      final double boxSize, final double[] r2) {
+        final double box2 = boxSize * boxSize;
+        for (int i = from; i < to; i++) {
+            double dx = x - xs[i];
+            double dy = y - ys[i];
+            double dz = z - zs[i];
+            dx -= Math.rint(dx);
+            dy -= Math.rint(dy);
+            dz -= Math.rint(dz);
+            r2[i] = box2 * (dx * dx + dy * dy + dz * dz);
+        }
+    }
+
+    /**
+     * @return sum of pair potentials between (x, y, z) and particles in [from, to)
+     */
+    static double sumPotentials(final IPairPotential pair,
+                                final double[] xs, final double[] ys, final double[] zs,
+                                final int from, final int to,
+                                final double x, final double y, final double z,
+                                final double boxSize, final double[] r2, final double[] out) {
+        fillDistances(xs, ys, zs, from, to, x, y, z, boxSize, r2);
+        return pair.sumPotentials(r2, out, from, to);
+    }
+
+    /**
+     * @return sum of pair potentials between (x, y, z) and particles in [from, to), coordinates
+     * are box fractions
+     */
+    static double sumFractionPotentials(final IPairPotential pair,
+                                        final double[] xs, final double[] ys, final double[] zs,
+                                        final int from, final int to,
+                                        final double x, final double y, final double z,
+                                        final double boxSize, final double[] r2, final double[] out) {
+        fillFractionDistances(xs, ys, zs, from, to, x, y, z, boxSize, r2);
+        return pair.sumPotentials(r2, out, from, to);
+    }
+}
@@ -0,0 +1,122 @@
+package com.butlitsky.mk.ensembles;
+
+import com.butlitsky.mk.options.CLOptions;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sum over an index range split into fixed chunks, computed in the shared fork-join pool.
+ * <p/>
+ * Chunk bounds depend only on the range and chunks number, partial sums are reduced in chunk
+ * order, so the result doesn't depend on threads scheduling. Tasks are preallocated and reused.
+ * <p/>
+ * Not reentrant: one instance serves one ensemble thread.
+ */
+abstract class ParallelRange {
+    private static ForkJoinPool pool;
+
+    private final Chunk[] chunks;
+    private final double[] partials;
+    private final Root root = new Root();
+
+    ParallelRange() {
+        // more chunks than threads to balance uneven (e.g. triangular) ranges
+        final int count = 4 * Math.max(1, CLOptions.INNER_THREADS);
+
+        chunks = new Chunk[count];
+        partials = new double[count];
+        for (int c = 0; c < count; c++) {
+            chunks[c] = new Chunk(c);
+        }
+    }
+
+    /**
+     * @return true if ensembles should split their sums
+     */
+    static boolean isEnabled() {
+        return CLOptions.INNER_THREADS > 0;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(CLOptions.INNER_THREADS);
+        }
+        return pool;
+    }
+
+    /**
+     * @return max number of chunks, chunk indexes passed to {@link #compute(int, int, int)} are
+     * less than this value
+     */
+    final int getMaxChunks() {
+        return chunks.length;
+    }
+
+    /**
+     * Sequential part of the sum, called concurrently for disjoint ranges.
+     *
+     * @param chunk index of the chunk (e.g. to select per chunk buffers)
+     */
+    protected abstract double compute(int chunk, int from, int to);
+
+    /**
+     * @param minChunk smallest range length worth a separate chunk
+     * @return sum of {@link #compute(int, int, int)} over [from, to) chunks
+     */
+    final double sum(int from, int to, int minChunk) {
+        final int count = Math.min(chunks.length, (to - from) / Math.max(1, minChunk));
+        if (count < 2) return compute(0, from, to);
+
+        final long length = to - from;
+        for (int c = 0; c < count; c++) {
+            chunks[c].from = from + (int) (length * c / count);
+            chunks[c].to = from + (int) (length * (c + 1) / count);
+        }
+
+        root.count = count;
+        root.reinitialize();
+        getPool().invoke(root);
+
+        double sum = 0;
+        for (int c = 0; c < count; c++) {
+            sum += partials[c];
+        }
+        return sum;
+    }
+
+    private final class Root extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int count;
+
+        @Override
+        protected void compute() {
+            for (int c = 1; c < count; c++) {
+                chunks[c].reinitialize();
+                chunks[c].fork();
+            }
+            chunks[0].compute();
+            for (int c = count - 1; c > 0; c--) {
+                chunks[c].join();
+            }
+        }
+    }
+
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private int from;
+        private int to;
+
+        Chunk(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            partials[index] = ParallelRange.this.compute(index, from, to);
+        }
+    }
+}
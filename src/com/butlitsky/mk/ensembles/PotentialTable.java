@@ -0,0 +1,179 @@
+package com.butlitsky.mk.ensembles;
+
+import com.butlitsky.mk.options.CLOptions;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+/**
+ * Tabulated pair potential: piecewise cubic Hermite spline over squared distance, so no sqrt
+ * or transcendental functions are called for tabulated distances.
+ * <p/>
+ * Table covers [0; maxR2) with equal r^2 cells. Every cell is checked against the source
+ * potential on construction, cells with error above tolerance (cores, plateau edges, kinks,
+ * singularities) and distances beyond maxR2 are evaluated by the source potential directly.
+ */
+final class PotentialTable implements IPairPotential {
+    private static final NumberFormat FORMAT = new DecimalFormat("0.##E0");
+
+    // checkpoints inside every cell (in cell fractions) to measure the interpolation error
+    private static final double[] CHECK_POINTS = {0.125, 0.25, 0.5, 0.75, 0.875};
+
+    private final IPairPotential source;
+    private final int cells;
+    private final double invH;
+
+    // [cell * 8]: 4 potential, then 4 energy polynomial coefficients
+    private final double[] coeffs;
+    // true – cell is evaluated by the source potential
+    private final boolean[] direct;
+
+    private int directCells = 0;
+    private double maxError = 0;
+
+    /**
+     * @param source    exact potential
+     * @param maxR2     squared distance the table covers (max minimum image distance^2)
+     * @param cells     number of table cells
+     * @param tolerance max allowed absolute error (in kT) for the tabulated cells
+     */
+    PotentialTable(IPairPotential source, double maxR2, int cells, double tolerance) {
+        this.source = source;
+        this.cells = cells;
+        final double h = maxR2 / cells;
+        invH = 1.0 / h;
+        coeffs = new double[cells * 8];
+        direct = new boolean[cells];
+
+        for (int i = 0; i < cells; i++) {
+            final double r2 = i * h;
+            final double nextR2 = (i + 1) * h;
+
+            fillCell(i * 8, h,
+                     source.getPotential(r2), source.getPotential(nextR2),
+                     potentialSlope(r2, h), potentialSlope(nextR2, h));
+            fillCell(i * 8 + 4, h,
+                     source.getEnergy(r2), source.getEnergy(nextR2),
+                     energySlope(r2, h), energySlope(nextR2, h));
+
+            final double error = cellError(i, h);
+            if (error <= tolerance) {  // NaN fails too
+                maxError = Math.max(maxError, error);
+            } else {
+                direct[i] = true;
+                directCells++;
+            }
+        }
+    }
+
+    /**
+     * Wraps the source potential into a table if tables are enabled by {@link CLOptions}
+     *
+     * @param tag short pair name for the log, null – not logged
+     */
+    static IPairPotential tabulate(IPairPotential source, double maxR2, String tag) {
+        if (CLOptions.POTENTIAL_TABLE_CELLS <= 0) return source;
+
+        final PotentialTable table = new PotentialTable(source, maxR2,
+                                                        CLOptions.POTENTIAL_TABLE_CELLS,
+                                                        CLOptions.POTENTIAL_TABLE_TOLERANCE);
+        if (tag != null) {
+            System.out.print(" table " + tag + ": sampled max err=" + FORMAT.format(table.getMaxError())
+                                     + ", direct " + table.getDirectCells() + "/" + table.cells);
+        }
+        return table;
+    }
+
+    /**
+     * Hermite cubic in t = (r2 - r2_i) / h, slopes are d/d(r2)
+     */
+    private void fillCell(int c, double h, double p0, double p1, double m0, double m1) {
+        coeffs[c] = p0;
+        coeffs[c + 1] = h * m0;
+        coeffs[c + 2] = 3 * (p1 - p0) - h * (2 * m0 + m1);
+        coeffs[c + 3] = 2 * (p0 - p1) + h * (m0 + m1);
+    }
+
+    private double potentialSlope(double r2, double h) {
+        final double d = h * 1e-3;
+        return (r2 < d) ?
+                (source.getPotential(r2 + d) - source.getPotential(r2)) / d :
+                (source.getPotential(r2 + d) - source.getPotential(r2 - d)) / (2 * d);
+    }
+
+    private double energySlope(double r2, double h) {
+        final double d = h * 1e-3;
+        return (r2 < d) ?
+                (source.getEnergy(r2 + d) - source.getEnergy(r2)) / d :
+                (source.getEnergy(r2 + d) - source.getEnergy(r2 - d)) / (2 * d);
+    }
+
+    private double cellError(int i, double h) {
+        double error = 0;
+        for (double t : CHECK_POINTS) {
+            final double r2 = (i + t) * h;
+            error = Math.max(error, Math.abs(interpolate(i * 8, t) - source.getPotential(r2)));
+            error = Math.max(error, Math.abs(interpolate(i * 8 + 4, t) - source.getEnergy(r2)));
+        }
+        return error;
+    }
+
+    private double interpolate(int c, double t) {
+        return coeffs[c] + t * (coeffs[c + 1] + t * (coeffs[c + 2] + t * coeffs[c + 3]));
+    }
+
+    @Override
+    public double getPotential(double r2) {
+        final double x = r2 * invH;
+        final int i = (int) x;
+        if (i >= cells || direct[i]) return source.getPotential(r2);
+
+        return interpolate(i << 3, x - i);
+    }
+
+    @Override
+    public double getEnergy(double r2) {
+        final double x = r2 * invH;
+        final int i = (int) x;
+        if (i >= cells || direct[i]) return source.getEnergy(r2);
+
+        return interpolate((i << 3) + 4, x - i);
+    }
+
+    /**
+     * Table lookups are gathers, so only the polynomial evaluation is inlined here
+     */
+    @Override
+    public double sumPotentials(double[] r2, double[] out, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            final double x = r2[i] * invH;
+            final int cell = (int) x;
+            final double pot = (cell >= cells || direct[cell]) ?
+                    source.getPotential(r2[i]) : interpolate(cell << 3, x - cell);
+            out[i] = pot;
+            sum += pot;
+        }
+        return sum;
+    }
+
+    /**
+     * Slope bound of the source potential, not of the interpolation (the table error is only
+     * sampled on the cells checkpoints)
+     */
+    @Override
+    public double getMaxSlope(double r) {
+        return source.getMaxSlope(r);
+    }
+
+    /**
+     * @return max interpolation error (in kT) measured on tabulated cells checkpoints
+     */
+    double getMaxError() {
+        return maxError;
+    }
+
+    int getDirectCells() {
+        return directCells;
+    }
+}
@@ -0,0 +1,200 @@
+package com.butlitsky.mk.ensembles;
+
+import com.butlitsky.mk.IEnsemble;
+import com.butlitsky.mk.math.MersenneTwisterFast;
+import com.butlitsky.mk.math.SplitMix64;
+import com.butlitsky.mk.options.CLOptions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Phaser;
+
+/**
+ * Replica exchange (parallel tempering) group: NVT ensembles of the same particles number and
+ * box size at different temperatures.
+ * <p/>
+ * Replicas run on their own pool threads and meet after every {@link CLOptions#EXCHANGE_INTERVAL}
+ * steps (counted from step 0). The last arriving thread tries to swap configurations of
+ * neighbouring T replicas (even and odd pairs in turn) while the others wait. Exchange
+ * generator state and rounds count are saved with every replica random state and restored from
+ * the lowest T replica folder, so a resumed group goes on with the same exchange decisions.
+ * <p/>
+ * Pair potentials are temperature dependent (polochka etc.), so the general criterion is used:
+ * delta = u_i(x_j) + u_j(x_i) - u_i(x_i) - u_j(x_j), every u in its own replica kT units.
+ */
+public final class ReplicaExchange {
+    private final NVTEnsemble[] replicas; // sorted by T
+    private final boolean[] active;
+    private final int interval;
+
+    private final long[] attempts;
+    private final long[] accepted;
+
+    private final MersenneTwisterFast rnd;
+    private int rounds; // exchange rounds done, even and odd pairs in turn
+
+    private final Phaser phaser;
+
+    private ReplicaExchange(List<NVTEnsemble> group, int interval) {
+        replicas = group.toArray(new NVTEnsemble[group.size()]);
+        Arrays.sort(replicas, new Comparator<NVTEnsemble>() {
+            @Override
+            public int compare(NVTEnsemble o1, NVTEnsemble o2) {
+                return Integer.compare(o1.getT(), o2.getT());
+            }
+        });
+
+        this.interval = interval;
+        rnd = new MersenneTwisterFast(
+                SplitMix64.forKey(CLOptions.MASTER_SEED, "exchange" + Arrays.toString(replicas)).nextInts(8));
+        active = new boolean[replicas.length];
+        Arrays.fill(active, true);
+        attempts = new long[replicas.length - 1];
+        accepted = new long[replicas.length - 1];
+        loadState();
+
+        phaser = new Phaser(replicas.length) {
+            @Override
+            protected boolean onAdvance(int phase, int registeredParties) {
+                if (registeredParties == 0) {
+                    printSummary();
+                    return true;
+                }
+                exchange();
+                return false;
+            }
+        };
+
+        for (NVTEnsemble replica : replicas) {
+            replica.joinExchange(this);
+        }
+    }
+
+    /**
+     * Groups NVT ensembles of the same type, particles number and box size having at least two
+     * different temperatures. Other ensembles are left independent.
+     *
+     * @return created groups
+     */
+    public static List<ReplicaExchange> createGroups(Collection<IEnsemble> ensembles) {
+        final Map<String, List<NVTEnsemble>> groups = new LinkedHashMap<>();
+
+        for (IEnsemble ensemble : ensembles) {
+            if (!(ensemble instanceof NVTEnsemble)) continue;
+
+            final NVTEnsemble nvt = (NVTEnsemble) ensemble;
+            final String key = nvt.getClass().getName() + "/" + nvt.getNumPart() + "/"
+                    + Double.doubleToLongBits(nvt.getBoxSize());
+
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<NVTEnsemble>());
+            }
+            groups.get(key).add(nvt);
+        }
+
+        final List<ReplicaExchange> result = new ArrayList<>();
+        for (List<NVTEnsemble> group : groups.values()) {
+            if (group.size() < 2) continue;
+
+            final ReplicaExchange exchange = new ReplicaExchange(group, CLOptions.EXCHANGE_INTERVAL);
+            System.out.println("Replica exchange group: " + Arrays.toString(exchange.replicas));
+            result.add(exchange);
+        }
+        return result;
+    }
+
+    public int size() {
+        return replicas.length;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Waits for all active replicas of the group to finish current segment
+     */
+    void await() {
+        phaser.arriveAndAwaitAdvance();
+    }
+
+    /**
+     * Called once the replica stops running, so the others don't wait for it anymore
+     */
+    void leave(MetropolisEnsemble replica) {
+        synchronized (this) {
+            final int index = Arrays.asList(replicas).indexOf(replica);
+            if (index < 0 || !active[index]) return;
+            active[index] = false;
+        }
+        phaser.arriveAndDeregister();
+    }
+
+    /**
+     * Saves exchange generator state and rounds count to the replica folder, called with the
+     * replica random state
+     */
+    synchronized void saveState(MetropolisEnsemble replica) {
+        final Path path = GibbsConfigurationManager.getPath(replica.myFolder + "/" + IEnsemble.EXCHANGE_STATE_FILE);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeInt(rounds);
+            rnd.writeState(out);
+        } catch (IOException e) {
+            System.out.println("ERROR: failed to save exchange state for " + replica.myFolder);
+        }
+    }
+
+    /**
+     * Restores state saved by {@link #saveState} to the lowest T replica folder if it is
+     * resumed, keeps the seeded state otherwise
+     */
+    private void loadState() {
+        final NVTEnsemble first = replicas[0];
+        final Path path = GibbsConfigurationManager.getPath(first.myFolder + "/" + IEnsemble.EXCHANGE_STATE_FILE);
+        if (!first.opt.isOld() || !Files.exists(path)) return;
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            final int saved = in.readInt();
+            rnd.readState(in);
+            rounds = saved;
+        } catch (IOException e) {
+            System.out.println("WARNING: failed to read exchange state for " + first.myFolder);
+        }
+    }
+
+    /**
+     * Runs in the last arrived replica thread, all others are waiting
+     */
+    private synchronized void exchange() {
+        // neighbours pairs (k, k+1) of the same parity in turn
+        for (int k = rounds % 2; k < replicas.length - 1; k += 2) {
+            if (!active[k] || !active[k + 1]) continue;
+
+            final NVTEnsemble a = replicas[k];
+            final NVTEnsemble b = replicas[k + 1];
+
+            final double delta = a.getTotalPotentialOf(b) + b.getTotalPotentialOf(a)
+                    - a.getTotalPotential() - b.getTotalPotential();
+
+            attempts[k]++;
+            if (delta <= 0 || Math.exp(-delta) >= rnd.nextDouble()) {
+                a.exchangeConfiguration(b);
+                accepted[k]++;
+            }
+        }
+        rounds++;
+    }
+
+    private synchronized void printSummary() {
+        final StringBuilder out = new StringBuilder("Replica exchange acceptance:");
+        for (int k = 0; k < attempts.length; k++) {
+            out.append(" ").append(replicas[k].getT()).append("K<->").append(replicas[k + 1].getT())
+                    .append("K ").append(accepted[k]).append("/").append(attempts[k]);
+        }
+        System.out.println(out);
+    }
+}
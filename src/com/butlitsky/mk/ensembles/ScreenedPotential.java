@@ -0,0 +1,63 @@
+package com.butlitsky.mk.ensembles;
+
+import static org.apache.commons.math3.special.Erf.erfc;
+
+/**
+ * Ewald real space pair term, (2.38) formula in book: Coulomb part of the source pair energy
+ * screened by erfc(alpha * r) plus the unscreened short range rest (source - coulomb / r, i.e.
+ * the core), cut at Rcut. Reciprocal space covers the Coulomb part only, so the total does not
+ * depend on alpha. Rcut must cover the core radius.
+ */
+final class ScreenedPotential implements IPairPotential {
+    private final IPairPotential source;
+    private final double coulomb;
+    private final double alpha;
+    private final double rcut2;
+
+    /**
+     * @param coulomb signed Coulomb factor of the source, coulomb / r outside the core
+     * @param alpha   Ewald splitting parameter (in 1/Bohr)
+     * @param rcut2   squared real space cutoff (in Bohrs^2)
+     */
+    ScreenedPotential(IPairPotential source, double coulomb, double alpha, double rcut2) {
+        this.source = source;
+        this.coulomb = coulomb;
+        this.alpha = alpha;
+        this.rcut2 = rcut2;
+    }
+
+    @Override
+    public double getPotential(double r2) {
+        return (r2 < rcut2) ? screen(source.getPotential(r2), r2) : 0;
+    }
+
+    @Override
+    public double getEnergy(double r2) {
+        return (r2 < rcut2) ? screen(source.getEnergy(r2), r2) : 0;
+    }
+
+    // outside the core value - coulomb / r is exactly zero
+    private double screen(double value, double r2) {
+        final double r = Math.sqrt(r2);
+        return coulomb * erfc(alpha * r) / r + (value - coulomb / r);
+    }
+
+    /**
+     * Real space term is cut at Rcut
+     */
+    @Override
+    public double getMaxSlope(double r) {
+        return (r * r >= rcut2) ? 0 : Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public double sumPotentials(double[] r2, double[] out, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            final double pot = getPotential(r2[i]);
+            out[i] = pot;
+            sum += pot;
+        }
+        return sum;
+    }
+}
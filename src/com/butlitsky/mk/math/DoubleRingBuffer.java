@@ -0,0 +1,105 @@
+package com.butlitsky.mk.math;
+
+/**
+ * Fixed capacity ring buffer of primitive doubles with O(1) average of the stored window.
+ * <p/>
+ * Running sum is compensated (Neumaier), so subtracting evicted values doesn't accumulate
+ * rounding errors over millions of steps. Optional stride records only every Nth offered value.
+ * <p/>
+ * Not thread safe.
+ */
+public final class DoubleRingBuffer {
+    private final double[] values;
+    private final int stride;
+
+    private int head = 0; // next write position
+    private int size = 0;
+    private int countdown = 0; // offered values to skip before next record
+
+    private double sum = 0;
+    private double compensation = 0;
+
+    /**
+     * @param capacity max number of recorded values (at least 1)
+     * @param stride   every stride-th offered value is recorded (1 – record all)
+     */
+    public DoubleRingBuffer(int capacity, int stride) {
+        values = new double[Math.max(1, capacity)];
+        this.stride = Math.max(1, stride);
+    }
+
+    /**
+     * Capacity needed to cover {@code window} offered values with given stride
+     */
+    public static int capacityFor(int window, int stride) {
+        return Math.max(1, (window + Math.max(1, stride) - 1) / Math.max(1, stride));
+    }
+
+    /**
+     * @return true if next {@link #offer(double)} call records the value
+     */
+    public boolean isNextRecorded() {
+        return countdown == 0;
+    }
+
+    /**
+     * Records the value if it fits the stride, skips it otherwise
+     */
+    public void offer(double value) {
+        if (countdown > 0) {
+            countdown--;
+            return;
+        }
+        countdown = stride - 1;
+        add(value);
+    }
+
+    /**
+     * Records the value unconditionally, evicting the oldest one if full
+     */
+    public void add(double value) {
+        if (size == values.length) {
+            accumulate(-values[head]);
+        } else {
+            size++;
+        }
+        values[head] = value;
+        accumulate(value);
+
+        head++;
+        if (head == values.length) head = 0;
+    }
+
+    private void accumulate(double value) {
+        final double t = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - t) + value;
+        } else {
+            compensation += (value - t) + sum;
+        }
+        sum = t;
+    }
+
+    /**
+     * @return average of the recorded values, 0 if empty
+     */
+    public double average() {
+        return (size == 0) ? 0 : (sum + compensation) / size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        countdown = 0;
+        sum = 0;
+        compensation = 0;
+    }
+}
@@ -0,0 +1,107 @@
+package com.butlitsky.mk.math;
+
+/**
+ * In place radix-2 complex FFT on a cubic K x K x K grid stored as separate real and imaginary
+ * arrays, index = (x * K + y) * K + z. Twiddles and bit reversal table are precomputed, no
+ * allocations per transform.
+ * <p/>
+ * Not thread safe.
+ */
+public final class Fft3D {
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] lineRe;
+    private final double[] lineIm;
+
+    /**
+     * @param size grid points per axis, power of two
+     */
+    public Fft3D(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        reversed = new int[size];
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        lineRe = new double[size];
+        lineIm = new double[size];
+
+        final int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = -Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Forward transform sum(f(r) * exp(-i 2Pi k r / K)) of all three axes
+     */
+    public void forward(double[] re, double[] im) {
+        final int K = size;
+        final int K2 = K * K;
+
+        // z lines are contiguous
+        for (int line = 0; line < K2; line++) {
+            transform(re, im, line * K, 1);
+        }
+        // y lines
+        for (int x = 0; x < K; x++) {
+            for (int z = 0; z < K; z++) {
+                transform(re, im, x * K2 + z, K);
+            }
+        }
+        // x lines
+        for (int yz = 0; yz < K2; yz++) {
+            transform(re, im, yz, K2);
+        }
+    }
+
+    /**
+     * 1D transform of the line starting at {@code offset} with given {@code stride}
+     */
+    private void transform(double[] re, double[] im, int offset, int stride) {
+        final int n = size;
+        final double[] xr = lineRe;
+        final double[] xi = lineIm;
+
+        for (int i = 0; i < n; i++) {
+            final int src = offset + reversed[i] * stride;
+            xr[i] = re[src];
+            xi[i] = im[src];
+        }
+
+        for (int half = 1, step = n / 2; half < n; half <<= 1, step >>= 1) {
+            for (int start = 0; start < n; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    final double wr = cos[k * step];
+                    final double wi = sin[k * step];
+                    final int a = start + k;
+                    final int b = a + half;
+
+                    final double tr = xr[b] * wr - xi[b] * wi;
+                    final double ti = xr[b] * wi + xi[b] * wr;
+                    xr[b] = xr[a] - tr;
+                    xi[b] = xi[a] - ti;
+                    xr[a] += tr;
+                    xi[a] += ti;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            final int dst = offset + i * stride;
+            re[dst] = xr[i];
+            im[dst] = xi[i];
+        }
+    }
+}
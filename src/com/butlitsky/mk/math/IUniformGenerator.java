@@ -0,0 +1,24 @@
+package com.butlitsky.mk.math;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Bulk source of uniform doubles for {@link UniformBuffer}
+ */
+public interface IUniformGenerator {
+
+    /**
+     * Fills the whole buffer with uniform [0; 1) values
+     */
+    void fill(double[] buffer);
+
+    void writeState(DataOutputStream stream) throws IOException;
+
+    /**
+     * Restores the state written by {@link #writeState(DataOutputStream)}, leaves current state
+     * untouched on errors
+     */
+    void readState(DataInputStream stream) throws IOException;
+}
@@ -0,0 +1,62 @@
+package com.butlitsky.mk.math;
+
+/**
+ * SplitMix64 generator (Steele, Lea, Flood 2014). Used to derive independent well mixed seeds
+ * for the per point generators from one master seed, not for the Monte-Carlo itself.
+ * <p/>
+ * Not thread safe.
+ */
+public final class SplitMix64 {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public SplitMix64(long seed) {
+        state = seed;
+    }
+
+    /**
+     * Stream for the given key (e.g. point folder), different keys give independent streams
+     */
+    public static SplitMix64 forKey(long masterSeed, CharSequence key) {
+        return new SplitMix64(mix(masterSeed) ^ hash(key));
+    }
+
+    public long nextLong() {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+    /**
+     * @param length number of seed ints (e.g. for Mersenne Twister array seeding)
+     */
+    public int[] nextInts(int length) {
+        final int[] result = new int[length];
+        for (int i = 0; i < length; i += 2) {
+            final long value = nextLong();
+            result[i] = (int) value;
+            if (i + 1 < length) result[i + 1] = (int) (value >>> 32);
+        }
+        return result;
+    }
+
+    /**
+     * SplitMix64 finalizer: bijective avalanche mix of 64 bits
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the chars, stable across JVMs (unlike String.hashCode() width)
+     */
+    public static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+}
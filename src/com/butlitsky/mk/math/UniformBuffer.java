@@ -0,0 +1,100 @@
+package com.butlitsky.mk.math;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Uniform [0; 1) doubles generated in bulk into a primitive buffer and consumed one by one,
+ * no allocations or locks in the Metropolis loop.
+ * <p/>
+ * Not thread safe.
+ */
+public final class UniformBuffer {
+    private final IUniformGenerator generator;
+    private final double[] buffer;
+    private int position;
+
+    /**
+     * @param size values generated at once (e.g. random numbers used by a sweep)
+     */
+    public UniformBuffer(IUniformGenerator generator, int size) {
+        this.generator = generator;
+        buffer = new double[Math.max(1, size)];
+        position = buffer.length; // filled on first use
+    }
+
+    /**
+     * @return uniform [0; 1) value
+     */
+    public double nextDouble() {
+        if (position == buffer.length) {
+            generator.fill(buffer);
+            position = 0;
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * @return uniform integer in [0; n) from a single double (bias below n / 2^53)
+     */
+    public int nextInt(int n) {
+        return (int) (nextDouble() * n);
+    }
+
+    /**
+     * Writes generator state and not consumed buffer values
+     */
+    public void writeState(DataOutputStream stream) throws IOException {
+        generator.writeState(stream);
+        stream.writeInt(buffer.length - position);
+        for (int i = position; i < buffer.length; i++) {
+            stream.writeDouble(buffer[i]);
+        }
+    }
+
+    public void readState(DataInputStream stream) throws IOException {
+        generator.readState(stream);
+
+        position = buffer.length; // generator state is valid anyway, buffer only if fully read
+
+        final int left = stream.readInt();
+        if (left < 0 || left > buffer.length) throw new IOException("wrong buffer size " + left);
+
+        // remaining values are moved to the buffer end, consumed in the same order
+        for (int i = buffer.length - left; i < buffer.length; i++) {
+            buffer[i] = stream.readDouble();
+        }
+        position = buffer.length - left;
+    }
+
+    /**
+     * Mersenne Twister source, kept to validate results against the previous generator
+     */
+    public static final class MersenneTwisterGenerator implements IUniformGenerator {
+        private MersenneTwisterFast rnd;
+
+        public MersenneTwisterGenerator(int[] seed) {
+            rnd = new MersenneTwisterFast(seed);
+        }
+
+        @Override
+        public void fill(double[] buffer) {
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = rnd.nextDouble();
+            }
+        }
+
+        @Override
+        public void writeState(DataOutputStream stream) throws IOException {
+            rnd.writeState(stream);
+        }
+
+        @Override
+        public void readState(DataInputStream stream) throws IOException {
+            final MersenneTwisterFast copy = (MersenneTwisterFast) rnd.clone();
+            copy.readState(stream);
+            rnd = copy;
+        }
+    }
+}
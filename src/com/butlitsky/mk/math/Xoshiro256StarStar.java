@@ -0,0 +1,92 @@
+package com.butlitsky.mk.math;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * xoshiro256** generator (Blackman, Vigna 2018): 256 bit state, period 2^256 - 1, passes
+ * BigCrush. A few shifts and rotations per 64 bits, no locks, no strictfp.
+ * <p/>
+ * Not thread safe.
+ */
+public final class Xoshiro256StarStar implements IUniformGenerator {
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private long s0, s1, s2, s3;
+
+    /**
+     * State is filled by the seed SplitMix64 stream, so it's never all zeros for any seed
+     */
+    public Xoshiro256StarStar(SplitMix64 seed) {
+        s0 = seed.nextLong();
+        s1 = seed.nextLong();
+        s2 = seed.nextLong();
+        s3 = seed.nextLong();
+    }
+
+    public long nextLong() {
+        final long result = Long.rotateLeft(s1 * 5, 7) * 9;
+        final long t = s1 << 17;
+
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+
+        return result;
+    }
+
+    /**
+     * @return uniform [0; 1) value from the upper 53 bits
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    @Override
+    public void fill(double[] buffer) {
+        // state kept in locals for the whole loop
+        long a = s0, b = s1, c = s2, d = s3;
+
+        for (int i = 0; i < buffer.length; i++) {
+            final long result = Long.rotateLeft(b * 5, 7) * 9;
+            final long t = b << 17;
+
+            c ^= a;
+            d ^= b;
+            b ^= c;
+            a ^= d;
+            c ^= t;
+            d = Long.rotateLeft(d, 45);
+
+            buffer[i] = (result >>> 11) * DOUBLE_UNIT;
+        }
+        s0 = a;
+        s1 = b;
+        s2 = c;
+        s3 = d;
+    }
+
+    @Override
+    public void writeState(DataOutputStream stream) throws IOException {
+        stream.writeLong(s0);
+        stream.writeLong(s1);
+        stream.writeLong(s2);
+        stream.writeLong(s3);
+    }
+
+    @Override
+    public void readState(DataInputStream stream) throws IOException {
+        final long a = stream.readLong(), b = stream.readLong(),
+                c = stream.readLong(), d = stream.readLong();
+        if ((a | b | c | d) == 0) throw new IOException("all zeros xoshiro256** state");
+
+        s0 = a;
+        s1 = b;
+        s2 = c;
+        s3 = d;
+    }
+}
@@ -32,6 +32,42 @@ public class CLOptions {
      */
     public static int NUM_THREADS = -1;
 
+    /**
+     * Fork-join threads shared by all ensembles to split single ensemble pair sums, 0 – serial
+     */
+    public static int INNER_THREADS = 0;
+
+    /**
+     * Number of trial moves evaluated concurrently ahead of the chain, 0 – no speculation
+     */
+    public static int SPECULATIVE_TRIALS = 0;
+
+    /**
+     * Delayed acceptance short range screening cutoff in average distances, 0 – single stage
+     */
+    public static double DELAYED_CUTOFF = 0;
+
+    /**
+     * Early rejection neighbour cells cutoff in average distances, 0 – always full sums
+     */
+    public static double EARLY_REJECTION_CUTOFF = 0;
+
+    /**
+     * Steps between replica exchange attempts of same density NVT points, 0 – no exchange
+     */
+    public static int EXCHANGE_INTERVAL = 0;
+
+    /**
+     * Master seed, every point generator is seeded by it and the point folder name. Random if not
+     * set in CLI (printed on start to reproduce the run)
+     */
+    public static long MASTER_SEED = System.nanoTime() ^ System.currentTimeMillis() << 20;
+
+    /**
+     * Use Mersenne Twister instead of xoshiro256** (to validate against previous versions)
+     */
+    public static boolean MERSENNE_TWISTER = false;
+
 
 // ----------------- Common ensemble options --------------------------------
     /**
@@ -64,6 +100,12 @@ public class CLOptions {
      */
     public static int NUM_ENERGY_AVG_STEPS = 100000;
 
+    /**
+     * Only every Nth Metropolis step energy is recorded for averages calculation, 0 – ensemble
+     * default (every step, a sweep for PME)
+     */
+    public static int NUM_ENERGY_AVG_STRIDE = 0;
+
     /**
      * Maximum dX,dY,dZ random displacement coefficient (times avg. distance)
      */
@@ -71,17 +113,43 @@ public class CLOptions {
 
     public static boolean START_FROM_FCC = false;
 
+    /**
+     * Number of cells in tabulated pair potentials, 0 – analytic potentials are used
+     */
+    public static int POTENTIAL_TABLE_CELLS = 0;
+
+    /**
+     * Max absolute error (in kT) of tabulated potentials cells, others are evaluated directly
+     */
+    public static double POTENTIAL_TABLE_TOLERANCE = 1e-7;
+
+    /**
+     * Batched pair sums: branchless distances pass, then potentials pass (JIT vectorizable)
+     */
+    public static boolean BATCHED_KERNEL = false;
+
 // -------------  Ewald ensemble specific steps --------------------------
     /**
-     * Ewal n cutoff
+     * Ewal n cutoff, 0 – Ncut, alpha and Rcut are tuned for Ewald delta accuracy
      */
-    public static int EWALD_N_CUTOFF = 3;
+    public static int EWALD_N_CUTOFF = 0;
 
     /**
      * Ewald alpha
      */
     public static double EWALD_DELTA = 0.00000001;
 
+// -------------  PME ensemble specific steps ----------------------------
+    /**
+     * Particle-mesh grid points per axis (power of two), 0 – from Ewald delta
+     */
+    public static int PME_GRID = 0;
+
+    /**
+     * B-spline charge assignment order
+     */
+    public static int PME_ORDER = 4;
+
 // -------------  Harrison ensemble specific steps -----------------------
     /**
      * R = N * BoxSize
@@ -120,6 +188,17 @@ public class CLOptions {
      */
     public static double SWITCH_RATE = 0.05;
 
+    /**
+     * LJ Gibbs pair potential cutoff in sigmas, neighbour cells sums with long range tail
+     * corrections. 0 – minimum image without cutoff
+     */
+    public static double LJ_CUTOFF = 0;
+
+    /**
+     * LJ Gibbs event chain displacement in avg. distances, 0 – Metropolis displacements
+     */
+    public static double EVENT_CHAIN_LENGTH = 0;
+
 
     private CLOptions() {
     }
@@ -157,6 +236,20 @@ public class CLOptions {
             System.out.println("Initial NaCl fcc cubic");
         }
 
+        if (line.hasOption("tab")) {
+            POTENTIAL_TABLE_CELLS = Integer.parseInt(line.getOptionValue("tab"));
+            System.out.println("Tabulated potentials, cells = " + POTENTIAL_TABLE_CELLS);
+
+            if (line.hasOption("tabtol")) {
+                POTENTIAL_TABLE_TOLERANCE = Double.parseDouble(line.getOptionValue("tabtol"));
+            }
+        }
+
+        if (line.hasOption("batch")) {
+            BATCHED_KERNEL = true;
+            System.out.println("Batched pair sums kernel");
+        }
+
         if (line.hasOption("pseudo")) {
             ENSEMBLE_TYPE = 3;
             System.out.println("PSEUDO potential");
@@ -202,6 +295,18 @@ public class CLOptions {
             }
         }
 
+        if (ENSEMBLE_TYPE == 5 || ENSEMBLE_TYPE == 6) {
+            if (line.hasOption("ljc")) {
+                LJ_CUTOFF = Double.parseDouble(line.getOptionValue("ljcut"));
+                System.out.println("LJ cutoff = " + LJ_CUTOFF + " sigma");
+            }
+
+            if (line.hasOption("ecmc")) {
+                EVENT_CHAIN_LENGTH = Double.parseDouble(line.getOptionValue("eventchain"));
+                System.out.println("Event chain length = " + EVENT_CHAIN_LENGTH + " avg. distances");
+            }
+        }
+
         if (line.hasOption("ew")) {
             ENSEMBLE_TYPE = 1;
             System.out.println("EWALD calculations!");
@@ -214,6 +319,21 @@ public class CLOptions {
             }
         }
 
+        if (line.hasOption("pme")) {
+            ENSEMBLE_TYPE = 7;
+            System.out.println("Particle-mesh EWALD calculations!");
+
+            if (line.hasOption("ewd")) {
+                EWALD_DELTA = Double.parseDouble(line.getOptionValue("ewd"));
+            }
+            if (line.hasOption("pmeg")) {
+                PME_GRID = Integer.parseInt(line.getOptionValue("pmeg"));
+            }
+            if (line.hasOption("pmep")) {
+                PME_ORDER = Integer.parseInt(line.getOptionValue("pmep"));
+            }
+        }
+
         if (line.hasOption("harris")) {
             ENSEMBLE_TYPE = 2;
             System.out.println("Harrison calculations!");
@@ -248,6 +368,60 @@ public class CLOptions {
             System.out.println("Custom workers count = " + NUM_THREADS);
         }
 
+        if (line.hasOption("fj")) {
+            INNER_THREADS = Integer.parseInt(line.getOptionValue("forkjoin"));
+            System.out.println("Fork-join threads per ensemble sums = " + INNER_THREADS);
+        }
+
+        if (line.hasOption("seed")) {
+            MASTER_SEED = Long.parseLong(line.getOptionValue("seed"));
+        }
+        System.out.println("Master seed = " + MASTER_SEED);
+
+        if (line.hasOption("mt")) {
+            MERSENNE_TWISTER = true;
+            System.out.println("Mersenne Twister random generator");
+        }
+
+        if (line.hasOption("rex")) {
+            EXCHANGE_INTERVAL = Integer.parseInt(line.getOptionValue("exchange"));
+            System.out.println("Replica exchange every " + EXCHANGE_INTERVAL + " steps");
+        }
+
+        if (line.hasOption("spec")) {
+            SPECULATIVE_TRIALS = Integer.parseInt(line.getOptionValue("speculative"));
+            System.out.println("Speculative trials = " + SPECULATIVE_TRIALS);
+
+            if (INNER_THREADS == 0) {
+                INNER_THREADS = SPECULATIVE_TRIALS;
+                System.out.println("Fork-join threads per ensemble sums = " + INNER_THREADS);
+            }
+        }
+
+        if (line.hasOption("da")) {
+            DELAYED_CUTOFF = Double.parseDouble(line.getOptionValue("delayed"));
+            if (SPECULATIVE_TRIALS > 0) {
+                DELAYED_CUTOFF = 0;
+                System.out.println("Delayed acceptance is ignored with speculative trials");
+            } else {
+                System.out.println("Delayed acceptance cutoff = " + DELAYED_CUTOFF + " avg. distances");
+            }
+        }
+
+        if (line.hasOption("er")) {
+            EARLY_REJECTION_CUTOFF = Double.parseDouble(line.getOptionValue("early"));
+            if (SPECULATIVE_TRIALS > 0 || DELAYED_CUTOFF > 0) {
+                EARLY_REJECTION_CUTOFF = 0;
+                System.out.println("Early rejection is ignored with speculative trials or delayed acceptance");
+            } else if (POTENTIAL_TABLE_CELLS > 0) {
+                // table error is sampled on checkpoints only, no strict bound for the far pairs
+                EARLY_REJECTION_CUTOFF = 0;
+                System.out.println("Early rejection is ignored with tabulated potentials");
+            } else {
+                System.out.println("Early rejection cutoff = " + EARLY_REJECTION_CUTOFF + " avg. distances");
+            }
+        }
+
         if (line.hasOption("d")) {
             MAX_DELTA_X = Double.parseDouble(line.getOptionValue("delta"));
         }
@@ -269,6 +443,11 @@ public class CLOptions {
         }
         System.out.println("Avg. points = " + NUM_ENERGY_AVG_STEPS);
 
+        if (line.hasOption("as")) {
+            NUM_ENERGY_AVG_STRIDE = Integer.parseInt(line.getOptionValue("as"));
+        }
+        System.out.println("Avg. stride = " + ((NUM_ENERGY_AVG_STRIDE > 0) ? NUM_ENERGY_AVG_STRIDE : "default"));
+
         if (line.hasOption("res")) {
             N_RESOLUTION_STEPS = Integer.parseInt(line.getOptionValue("res"));
         }
@@ -289,6 +468,30 @@ public class CLOptions {
                                                                                             "parallel threads (default is MAX(2, CPUs/2)").withLongOpt(
                 "workers").create("w");
 
+        Option forkJoin = OptionBuilder.withArgName("THREADS").hasArg().withDescription("split " +
+                                                                                            "single ensemble pair sums across fork-join threads (off by default)")
+                .withLongOpt("forkjoin").create("fj");
+
+        Option speculative = OptionBuilder.withArgName("TRIALS").hasArg().withDescription("evaluate " +
+                                                                                               "next TRIALS NVT moves concurrently, chain stays exact (off by default)")
+                .withLongOpt("speculative").create("spec");
+
+        Option delayed = OptionBuilder.withArgName("DISTANCES").hasArg().withDescription("screen NVT " +
+                                                                                           "moves by neighbours within DISTANCES first, chain stays exact (off by default)")
+                .withLongOpt("delayed").create("da");
+
+        Option early = OptionBuilder.withArgName("DISTANCES").hasArg().withDescription("reject NVT " +
+                                                                                        "moves by neighbours within DISTANCES and far pairs bound, not with -tab (off by default)")
+                .withLongOpt("early").create("er");
+
+        Option seed = OptionBuilder.withArgName("SEED").hasArg().withDescription("master random " +
+                                                                                  "seed for reproducible runs (random by default)")
+                .withLongOpt("seed").create("seed");
+
+        Option exchange = OptionBuilder.withArgName("STEPS").hasArg().withDescription("swap " +
+                                                                                          "configurations of neighbouring T points every STEPS (off by default)")
+                .withLongOpt("exchange").create("rex");
+
         Option particles = OptionBuilder.withArgName("PARTICLES").hasArg().withDescription
                 ("number of particles, (" + NUM_PARTICLES + " default)").withLongOpt("particles").create("pa");
 
@@ -296,6 +499,10 @@ public class CLOptions {
                                                                                              "averaging points for Energy (default is number of total workingssteps!)")
                 .withLongOpt("avpoints").create("ap");
 
+        Option avstride = OptionBuilder.withArgName("STRIDE").hasArg().withDescription("record " +
+                                                                                               "every Nth step energy for averages (1 default, a sweep for PME)")
+                .withLongOpt("avstride").create("as");
+
 
         Option steps = OptionBuilder.withArgName("STEPS").hasArg().withDescription("number of " +
                                                                                            "steps (" + DEFAULT_NUM_STEPS + " by default)").withLongOpt(
@@ -315,9 +522,15 @@ public class CLOptions {
                                                                                               + EWALD_DELTA + " default)").withLongOpt(
                 "ewaldelta").create("ewd");
 
-        Option ewaldNcut = OptionBuilder.withArgName("NUM").hasArg().withDescription("Ewald cutoff parameter (" + EWALD_N_CUTOFF + " default)").withLongOpt(
+        Option ewaldNcut = OptionBuilder.withArgName("NUM").hasArg().withDescription("Ewald cutoff parameter (tuned with alpha and Rcut default)").withLongOpt(
                 "ewaldn").create("ewn");
 
+        Option pmeGrid = OptionBuilder.withArgName("NUM").hasArg().withDescription(
+                "PME grid points per axis, power of two (from Ewald delta default)").withLongOpt("pmegrid").create("pmeg");
+
+        Option pmeOrder = OptionBuilder.withArgName("NUM").hasArg().withDescription(
+                "PME B-spline order (" + PME_ORDER + " default)").withLongOpt("pmeorder").create("pmep");
+
         Option harrisR = OptionBuilder.withArgName("NUM").hasArg().withDescription(
                 "Harris radius. When set Harris algorithm used with given R in L (" + HARRISON_N + " default)")
                 .withLongOpt("harris").create("harris");
@@ -326,6 +539,15 @@ public class CLOptions {
                 ("Number of steps to ignore in markov chain averages (default " + INITIAL_STEPS + ")")
                 .withLongOpt("inisteps").create("inisteps");
 
+        Option table = OptionBuilder.withArgName("CELLS").hasArg().withDescription(
+                "use tabulated pair potentials with given number of cells (off by default)")
+                .withLongOpt("table").create("tab");
+
+        Option tableTolerance = OptionBuilder.withArgName("kT").hasArg().withDescription(
+                "max tabulated potential error, worse cells are calculated directly ("
+                        + POTENTIAL_TABLE_TOLERANCE + " default)")
+                .withLongOpt("tabletol").create("tabtol");
+
 //        Gibbs specific options
         Option deltav = OptionBuilder.withArgName("MAX_dV/V").hasArg()
                 .withDescription(" Gibbs maximum relative volume change from 0 to 1 (default is " +
@@ -349,6 +571,16 @@ public class CLOptions {
                 .withDescription("Percentage of interchange steps (default 0.05)")
                 .withLongOpt("switchrate").create("switchrate");
 
+        Option ljcut = OptionBuilder.withArgName("SIGMAS").hasArg()
+                .withDescription("Lennard-Johnes potential cutoff with tail corrections " +
+                                         "(minimum image, no cutoff default)")
+                .withLongOpt("ljcut").create("ljc");
+
+        Option eventchain = OptionBuilder.withArgName("DISTANCES").hasArg()
+                .withDescription("Lennard-Johnes event chain displacement moves of given length " +
+                                         "instead of Metropolis ones (off by default)")
+                .withLongOpt("eventchain").create("ecmc");
+
 //        new in 12.0
         Option n1 = OptionBuilder.withArgName("N").hasArg()
                 .withDescription("Initial Lennard-Johnes N 1st box (0.1 default)")
@@ -369,15 +601,26 @@ public class CLOptions {
         options.addOption("h", false, "show this help and exit");
         options.addOption("pseudo", false, "use Pseudopotential");
         options.addOption("cubic", false, "use simple cubic start config (randomized by default)");
+        options.addOption("mt", false, "use Mersenne Twister random generator (xoshiro256** default)");
+        options.addOption("batch", false, "use batched (vectorizable) pair sums kernel");
         options.addOption(avpoints);
+        options.addOption(avstride);
         options.addOption(polka);
         options.addOption(delta);
         options.addOption(particles);
         options.addOption(refresh);
         options.addOption(workers);
+        options.addOption(forkJoin);
+        options.addOption(speculative);
+        options.addOption(delayed);
+        options.addOption(early);
+        options.addOption(exchange);
+        options.addOption(seed);
         options.addOption(steps);
         options.addOption(temp);
         options.addOption(stepsToPass);
+        options.addOption(table);
+        options.addOption(tableTolerance);
 
 //      Gibbs options
         options.addOption("gibbs", false, "use Gibbs ensemble (two box simulation)");
@@ -391,6 +634,8 @@ public class CLOptions {
         options.addOption(rostar1);
         options.addOption(rostar2);
         options.addOption(switchrate);
+        options.addOption(ljcut);
+        options.addOption(eventchain);
         options.addOption(n1);
         options.addOption(n2);
 
@@ -398,6 +643,9 @@ public class CLOptions {
         options.addOption("ew", false, "use Ewald summation");
         options.addOption(ewaldDelta);
         options.addOption(ewaldNcut);
+        options.addOption("pme", false, "use smooth particle-mesh Ewald summation");
+        options.addOption(pmeGrid);
+        options.addOption(pmeOrder);
 
 //      Harrison options
         options.addOption(harrisR);